@@ -0,0 +1,62 @@
+package ProbReasoning;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * DenseBenchmark
+ * one step with the dense Matrix the transition used to be stored in, against the same step with
+ * the SparseMatrix of ModelBenchmark. A dense transition needs numStates^2 doubles, so only small
+ * mazes are covered.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DenseBenchmark {
+
+    @Param({"simple.maz", "medium.maz", "hard.maz", "2500"})
+    public String maze;
+
+    private Matrix dense;
+    private double[] prev;
+
+    @Setup
+    public void setup() throws IOException {
+        boolean generated = maze.chars().allMatch(Character::isDigit);
+        Path file = generated ? ModelBenchmark.writeRandomMaze(Integer.parseInt(maze)) : Path.of(maze);
+        MazeModel model = new MazeModel(Maze.readFromFile(file.toString()));
+        if(generated)
+            Files.deleteIfExists(file);
+
+        int n = model.getNumStates();
+        SparseMatrix transition = model.getTransitionTranspose();
+        dense = new Matrix(n, n);
+        for(int r = 0; r < n; r++){
+            for(int k = transition.rowPtr[r]; k < transition.rowPtr[r+1]; k++)
+                dense.data[r][transition.colIdx[k]] = transition.values[k];
+        }
+        prev = model.uniformBelief();
+    }
+
+    @Benchmark
+    public double[] multiplyVector(){
+        return dense.multiplyVector(prev);
+    }
+}
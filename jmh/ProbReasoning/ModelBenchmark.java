@@ -0,0 +1,130 @@
+package ProbReasoning;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * ModelBenchmark
+ * JMH benchmarks of maze loading, model construction, filtering and smoothing, from the bundled
+ * mazes up to generated mazes of 10^6 cells. Run with the GC profiler to get the bytes allocated
+ * per operation:
+ *
+ *   mvn -B package
+ *   java -jar target/benchmarks.jar ModelBenchmark -prof gc
+ *
+ * A maze is either a .maz file, relative to the directory the benchmarks are started from, or a
+ * number of cells, for which a square maze with about 20% walls is generated into a temporary file.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class ModelBenchmark {
+
+    @Param({"simple.maz", "medium.maz", "hard.maz", "10000", "100000", "1000000"})
+    public String maze;
+
+    private Path file;
+    private boolean generated;
+    private Maze loaded;
+    private MazeModel model;
+    private char[] sensorData;
+    private double[] prev, next;
+
+    @Setup
+    public void setup() throws IOException {
+        generated = maze.chars().allMatch(Character::isDigit);
+        file = generated ? writeRandomMaze(Integer.parseInt(maze)) : Path.of(maze);
+        loaded = Maze.readFromFile(file.toString());
+        if(loaded == null)
+            throw new IllegalStateException("Cannot read " + file);
+        model = new MazeModel(loaded);
+
+        // keep T*numStates bounded so that the filtered and smoothed vectors fit in the heap
+        int numStates = model.getNumStates();
+        sensorData = randomReadings((int) Math.max(10, Math.min(1000, 10_000_000L / numStates)), 1);
+        prev = model.uniformBelief();
+        next = new double[numStates];
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        if(generated)
+            Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public Maze readFromFile(){
+        return Maze.readFromFile(file.toString());
+    }
+
+    @Benchmark
+    public MazeModel buildModel(){
+        return new MazeModel(loaded);
+    }
+
+    @Benchmark
+    public ProbabilisticReasoning forward(){
+        return new ProbabilisticReasoning(model, sensorData, false);
+    }
+
+    @Benchmark
+    public ProbabilisticReasoning forwardBackward(){
+        return new ProbabilisticReasoning(model, sensorData, true);
+    }
+
+    @Benchmark
+    public double[] multiplyVector(){
+        return model.getTransitionTranspose().multiplyVector(prev, next);
+    }
+
+    @Benchmark
+    public double forwardStep(){
+        return model.forwardStep(prev, 'r', next);
+    }
+
+    /**
+     * writeRandomMaze
+     * write a square maze with about 20% walls and random colors to a temporary .maz file
+     * @param numCells number of cells, rounded to a square
+     * @return path of the file
+     */
+    static Path writeRandomMaze(int numCells) throws IOException {
+        int side = (int) Math.round(Math.sqrt(numCells));
+        Path path = Files.createTempFile("bench" + side + "x" + side, ".maz");
+        MazeGenerator.write(MazeGenerator.generate(side, side, 0.2, side), path);
+        return path;
+    }
+
+    /**
+     * randomReadings
+     * @param numSteps
+     * @param seed
+     * @return a sequence of random sensor readings
+     */
+    static char[] randomReadings(int numSteps, long seed){
+        SplittableRandom random = new SplittableRandom(seed);
+        char[] sensorData = new char[numSteps];
+        for(int t = 0; t < numSteps; t++)
+            sensorData[t] = SensorModel.COLORS[random.nextInt(SensorModel.NUM_COLORS)];
+        return sensorData;
+    }
+}
@@ -0,0 +1,268 @@
+package ProbReasoning;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BiFunction;
+
+/**
+ * BatchRunner
+ * runs inference for many sensor logs against one shared MazeModel. The model is built once by
+ * the caller and the sequences are split across a ForkJoinPool, so no per-sequence setup is
+ * repeated and throughput scales with the number of cores. Every sequence is treated the same way
+ * as in ProbabilisticReasoning (sensorData[0] is not used by the forward pass).
+ */
+public class BatchRunner {
+
+    // number of sequences below which a task is not split any further
+    private final static int SEQUENTIAL_THRESHOLD = 4;
+
+    // summarize splits into about this many tasks per thread of the pool; every task fills its own
+    // Statistics, which holds a histogram over all states, so the tasks must be few and large
+    private final static int SUMMARY_TASKS_PER_THREAD = 4;
+
+    private final MazeModel model;
+    private final ForkJoinPool pool;
+
+    /**
+     * Constructor for BatchRunner using the common fork-join pool
+     * @param model
+     */
+    public BatchRunner(MazeModel model){
+        this(model, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Constructor for BatchRunner using a given fork-join pool
+     * @param model
+     * @param pool
+     */
+    public BatchRunner(MazeModel model, ForkJoinPool pool){
+        this.model = model;
+        this.pool = pool;
+    }
+
+    /**
+     * Result
+     * filtering result of one sequence
+     */
+    public static class Result {
+        public final double[] finalBelief;
+        public final double logLikelihood;
+        public final int mostLikelyState;
+
+        public Result(double[] finalBelief, double logLikelihood){
+            this.finalBelief = finalBelief;
+            this.logLikelihood = logLikelihood;
+            int best = 0;
+            for(int i = 1; i < finalBelief.length; i++){
+                if(finalBelief[i] > finalBelief[best])
+                    best = i;
+            }
+            this.mostLikelyState = best;
+        }
+    }
+
+    /**
+     * Statistics
+     * aggregate over many sequences, built by merging the statistics of sub-batches
+     */
+    public static class Statistics {
+        public int numSequences;
+        public long numSteps;
+        public double sumLogLikelihood;
+        public double minLogLikelihood = Double.POSITIVE_INFINITY;
+        public double maxLogLikelihood = Double.NEGATIVE_INFINITY;
+
+        // number of sequences whose final most likely state is each state
+        public final long[] finalStateCounts;
+
+        public Statistics(int numStates){
+            finalStateCounts = new long[numStates];
+        }
+
+        /**
+         * add
+         * @param sequence
+         * @param result
+         */
+        public void add(char[] sequence, Result result){
+            numSequences++;
+            numSteps += sequence.length;
+            sumLogLikelihood += result.logLikelihood;
+            minLogLikelihood = Math.min(minLogLikelihood, result.logLikelihood);
+            maxLogLikelihood = Math.max(maxLogLikelihood, result.logLikelihood);
+            finalStateCounts[result.mostLikelyState]++;
+        }
+
+        /**
+         * merge
+         * @param other statistics of a disjoint set of sequences
+         * @return this
+         */
+        public Statistics merge(Statistics other){
+            numSequences += other.numSequences;
+            numSteps += other.numSteps;
+            sumLogLikelihood += other.sumLogLikelihood;
+            minLogLikelihood = Math.min(minLogLikelihood, other.minLogLikelihood);
+            maxLogLikelihood = Math.max(maxLogLikelihood, other.maxLogLikelihood);
+            for(int i = 0; i < finalStateCounts.length; i++)
+                finalStateCounts[i] += other.finalStateCounts[i];
+            return this;
+        }
+
+        public double meanLogLikelihood(){
+            return sumLogLikelihood / numSequences;
+        }
+
+        public String toString(){
+            return "sequences = " + numSequences + ", steps = " + numSteps
+                    + ", log-likelihood mean = " + meanLogLikelihood()
+                    + " min = " + minLogLikelihood + " max = " + maxLogLikelihood;
+        }
+    }
+
+    /**
+     * filter
+     * run the forward filter over one sequence on the calling thread
+     * @param sensorData
+     * @return result of the sequence
+     */
+    public Result filter(char[] sensorData){
+        OnlineFilter filter = new OnlineFilter(model);
+        for(int t = 1; t < sensorData.length; t++)
+            filter.update(sensorData[t]);
+        return new Result(filter.currentBelief(), filter.getLogLikelihood());
+    }
+
+    /**
+     * filterAll
+     * run the forward filter over every sequence in parallel
+     * @param sequences
+     * @return result of every sequence, in the same order
+     */
+    public List<Result> filterAll(List<char[]> sequences){
+        return runAll(sequences, (m, sensorData) -> filter(sensorData));
+    }
+
+    /**
+     * runAll
+     * run any per-sequence computation on the shared model in parallel, e.g. a Viterbi decoder or
+     * a CheckpointSmoother
+     * @param sequences
+     * @param function computation of one sequence, called concurrently from several threads
+     * @return result of every sequence, in the same order
+     */
+    public <R> List<R> runAll(List<char[]> sequences, BiFunction<MazeModel, char[], R> function){
+        Object[] results = new Object[sequences.size()];
+        pool.invoke(new RunTask<R>(sequences, function, results, 0, sequences.size()));
+
+        List<R> list = new ArrayList<>(results.length);
+        for(Object result : results){
+            @SuppressWarnings("unchecked")
+            R r = (R) result;
+            list.add(r);
+        }
+        return list;
+    }
+
+    /**
+     * summarize
+     * run the forward filter over every sequence in parallel and only keep aggregate statistics,
+     * so the per-sequence beliefs never have to be held at the same time
+     * @param sequences
+     * @return statistics over all sequences
+     */
+    public Statistics summarize(List<char[]> sequences){
+        int numTasks = SUMMARY_TASKS_PER_THREAD * pool.getParallelism();
+        int leafSize = Math.max(SEQUENTIAL_THRESHOLD, (sequences.size() + numTasks - 1) / numTasks);
+        return pool.invoke(new SummarizeTask(sequences, leafSize, 0, sequences.size()));
+    }
+
+    /**
+     * RunTask
+     * fork-join task running a computation over a range of sequences
+     */
+    private class RunTask<R> extends RecursiveAction {
+        private final static long serialVersionUID = 1L;
+
+        private final List<char[]> sequences;
+        private final BiFunction<MazeModel, char[], R> function;
+        private final Object[] results;
+        private final int from, to;
+
+        RunTask(List<char[]> sequences, BiFunction<MazeModel, char[], R> function, Object[] results,
+                int from, int to){
+            this.sequences = sequences;
+            this.function = function;
+            this.results = results;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute(){
+            if(to - from <= SEQUENTIAL_THRESHOLD){
+                for(int i = from; i < to; i++)
+                    results[i] = function.apply(model, sequences.get(i));
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new RunTask<R>(sequences, function, results, from, mid),
+                    new RunTask<R>(sequences, function, results, mid, to));
+        }
+    }
+
+    /**
+     * SummarizeTask
+     * fork-join task filtering a range of sequences and reducing them to statistics
+     */
+    private class SummarizeTask extends RecursiveTask<Statistics> {
+        private final static long serialVersionUID = 1L;
+
+        private final List<char[]> sequences;
+        private final int leafSize;
+        private final int from, to;
+
+        SummarizeTask(List<char[]> sequences, int leafSize, int from, int to){
+            this.sequences = sequences;
+            this.leafSize = leafSize;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Statistics compute(){
+            if(to - from <= leafSize){
+                Statistics stats = new Statistics(model.getNumStates());
+                for(int i = from; i < to; i++)
+                    stats.add(sequences.get(i), filter(sequences.get(i)));
+                return stats;
+            }
+            int mid = (from + to) >>> 1;
+            SummarizeTask left = new SummarizeTask(sequences, leafSize, from, mid);
+            left.fork();
+            Statistics right = new SummarizeTask(sequences, leafSize, mid, to).compute();
+            return left.join().merge(right);
+        }
+    }
+
+    public static void main(String[] args){
+        Maze m = Maze.readFromFile("medium.maz");
+        BatchRunner runner = new BatchRunner(new MazeModel(m));
+
+        List<char[]> sequences = new ArrayList<>();
+        for(int i = 0; i < 1000; i++){
+            char[] sensorData = new char[50];
+            for(int t = 0; t < sensorData.length; t++)
+                sensorData[t] = SensorModel.COLORS[(i + t*t) % SensorModel.NUM_COLORS];
+            sequences.add(sensorData);
+        }
+
+        System.out.println(runner.summarize(sequences));
+        System.out.println(Arrays.toString(runner.filterAll(sequences).get(0).finalBelief));
+    }
+}
@@ -0,0 +1,254 @@
+package ProbReasoning;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * BatchedFilter
+ * forward filter for a block of robots in the same maze, advanced together. The beliefs are
+ * stored state-major in one array, belief[stateNum*batchSize + robot], so a step walks the rows
+ * of the transition matrix once for the whole block and the innermost loop runs over the robots
+ * in contiguous memory, where the JIT can vectorize it. Each robot has its own reading at every
+ * step; its likelihood is looked up in a small table built per step, indexed by tile color.
+ *
+ * Every update advances every robot by one time step; a robot without a reading at that step
+ * gets a missing reading (any character that is not a color). The posteriors are the same as
+ * the ones of OnlineFilter. An instance is not thread-safe.
+ */
+public class BatchedFilter {
+
+    private final MazeModel model;
+    private final int numStates, batchSize;
+
+    // state-major beliefs: entry stateNum*batchSize + robot. They are stored unnormalized, the
+    // belief of a robot is its column times scale[robot]; the scale is folded into the weights of
+    // the next step, which saves a pass over the whole block
+    private double[] belief, scratch;
+    private final double[] scale;
+
+    // per step: likelihood of the reading of every robot for every tile color, and column sums
+    private final double[] weight;
+    private final double[] sums;
+
+    private final long[] numUpdates;
+    private final double[] logLikelihood;
+
+    /**
+     * Constructor for BatchedFilter, every robot starting from a uniform belief
+     * @param model
+     * @param batchSize number of robots in the block
+     */
+    public BatchedFilter(MazeModel model, int batchSize){
+        if(batchSize < 1)
+            throw new IllegalArgumentException("Batch size must be positive");
+        this.model = model;
+        this.numStates = model.getNumStates();
+        this.batchSize = batchSize;
+        belief = new double[numStates*batchSize];
+        scratch = new double[numStates*batchSize];
+        weight = new double[(SensorModel.UNKNOWN_COLOR+1)*batchSize];
+        sums = new double[batchSize];
+        scale = new double[batchSize];
+        numUpdates = new long[batchSize];
+        logLikelihood = new double[batchSize];
+        for(int b = 0; b < batchSize; b++)
+            reset(b);
+    }
+
+    /**
+     * reset
+     * put a robot back to a uniform belief, e.g. to reuse its slot for another robot
+     * @param robot slot in the block
+     */
+    public void reset(int robot){
+        double p = 1.0 / numStates;
+        for(int i = 0; i < numStates; i++)
+            belief[i*batchSize + robot] = p;
+        scale[robot] = 1;
+        numUpdates[robot] = 0;
+        logLikelihood[robot] = 0;
+    }
+
+    /**
+     * update
+     * advance every robot by one time step, in one pass over the transition matrix
+     * @param colors reading of every robot, of length batchSize
+     * @param norms receives the normalizing constant of every robot, may be null
+     */
+    public void update(char[] colors, double[] norms){
+        if(colors.length != batchSize)
+            throw new IllegalArgumentException("Need " + batchSize + " readings, got " + colors.length);
+        SensorModel sensor = model.getSensor();
+        for(int b = 0; b < batchSize; b++){
+            double[] row = sensor.emissionRow(colors[b]);
+            for(int a = 0; a <= SensorModel.UNKNOWN_COLOR; a++)
+                weight[a*batchSize + b] = ((row == null) ? 1 : row[a])*scale[b];
+        }
+
+        SparseMatrix transitionTranspose = model.getTransitionTranspose();
+        int[] rowPtr = transitionTranspose.rowPtr;
+        int[] colIdx = transitionTranspose.colIdx;
+        double[] values = transitionTranspose.values;
+        byte[] stateColor = sensor.stateColors();
+        int B = batchSize;
+        double[] prev = belief, next = scratch;
+
+        Arrays.fill(sums, 0);
+        for(int j = 0; j < numStates; j++){
+            int out = j*B;
+            // predict: probability of moving into j from any of its neighbours, for every robot
+            int k = rowPtr[j];
+            double v = values[k];
+            int in = colIdx[k]*B;
+            for(int b = 0; b < B; b++)
+                next[out + b] = v*prev[in + b];
+            for(k++; k < rowPtr[j+1]; k++){
+                v = values[k];
+                in = colIdx[k]*B;
+                for(int b = 0; b < B; b++)
+                    next[out + b] += v*prev[in + b];
+            }
+            // weight by the likelihood of the reading of every robot (and the pending scale)
+            int w = stateColor[j]*B;
+            for(int b = 0; b < B; b++){
+                next[out + b] *= weight[w + b];
+                sums[b] += next[out + b];
+            }
+        }
+
+        for(int b = 0; b < B; b++){
+            double norm = sums[b];
+            if(!(norm > 0)){
+                // the reading is impossible under the model: keep the prediction without it
+                conflict(prev, next, b);
+                norm = 0;
+            }else{
+                scale[b] = 1.0 / norm;
+            }
+            logLikelihood[b] += Math.log(norm);
+            if(norms != null)
+                norms[b] = norm;
+        }
+
+        belief = next;
+        scratch = prev;
+        for(int b = 0; b < B; b++)
+            numUpdates[b]++;
+    }
+
+    /**
+     * conflict
+     * helper function for update: predict one robot without its reading and set the scale that
+     * normalizes it
+     */
+    private void conflict(double[] prev, double[] next, int robot){
+        SparseMatrix transitionTranspose = model.getTransitionTranspose();
+        double sum = 0;
+        for(int j = 0; j < numStates; j++){
+            double p = 0;
+            for(int k = transitionTranspose.rowPtr[j]; k < transitionTranspose.rowPtr[j+1]; k++)
+                p += transitionTranspose.values[k]*prev[transitionTranspose.colIdx[k]*batchSize + robot];
+            next[j*batchSize + robot] = p;
+            sum += p;
+        }
+        if(sum > 0){
+            scale[robot] = 1.0 / sum;
+        }else{
+            for(int j = 0; j < numStates; j++)
+                next[j*batchSize + robot] = 1;
+            scale[robot] = 1.0 / numStates;
+        }
+    }
+
+    /**
+     * getProbability
+     * @param robot slot in the block
+     * @param stateNum
+     * @return probability that the robot is in stateNum after the last reading
+     */
+    public double getProbability(int robot, int stateNum){
+        return belief[stateNum*batchSize + robot]*scale[robot];
+    }
+
+    /**
+     * currentBelief
+     * @param robot slot in the block
+     * @return a copy of the belief of the robot after the last reading
+     */
+    public double[] currentBelief(int robot){
+        double[] result = new double[numStates];
+        for(int i = 0; i < numStates; i++)
+            result[i] = belief[i*batchSize + robot]*scale[robot];
+        return result;
+    }
+
+    public long getNumUpdates(int robot){
+        return numUpdates[robot];
+    }
+
+    public double getLogLikelihood(int robot){
+        return logLikelihood[robot];
+    }
+
+    public int getBatchSize(){
+        return batchSize;
+    }
+
+    public MazeModel getModel(){
+        return model;
+    }
+
+    /**
+     * main
+     * compare the throughput of one OnlineFilter per robot with blocks of several sizes
+     */
+    public static void main(String[] args){
+        Maze maze = (args.length > 0) ? Maze.readFromFile(args[0]) : MazeGenerator.generate(316, 316, 0.2, 1);
+        MazeModel model = new MazeModel(maze);
+        int numRobots = 64, numSteps = 50;
+        MazeGenerator.Trajectory[] trajectories = MazeGenerator.simulateMany(maze, numRobots, numSteps, 1);
+        System.out.println(model.getNumStates() + " states, " + numRobots + " robots, " + numSteps + " steps");
+
+        for(int round = 0; round < 2; round++){
+            // one filter per robot, one robot at a time
+            OnlineFilter[] filters = new OnlineFilter[numRobots];
+            for(int r = 0; r < numRobots; r++)
+                filters[r] = new OnlineFilter(model);
+            long start = System.nanoTime();
+            for(int t = 1; t <= numSteps; t++){
+                for(int r = 0; r < numRobots; r++)
+                    filters[r].update(trajectories[r].sensorData[t]);
+            }
+            report("OnlineFilter per robot", numRobots*numSteps, System.nanoTime() - start, round);
+
+            for(int batchSize: new int[]{4, 8, 16, 32, 64}){
+                BatchedFilter[] blocks = new BatchedFilter[numRobots / batchSize];
+                for(int g = 0; g < blocks.length; g++)
+                    blocks[g] = new BatchedFilter(model, batchSize);
+                char[] colors = new char[batchSize];
+                start = System.nanoTime();
+                for(int t = 1; t <= numSteps; t++){
+                    for(int g = 0; g < blocks.length; g++){
+                        for(int b = 0; b < batchSize; b++)
+                            colors[b] = trajectories[g*batchSize + b].sensorData[t];
+                        blocks[g].update(colors, null);
+                    }
+                }
+                report("BatchedFilter B=" + batchSize, numRobots*numSteps, System.nanoTime() - start, round);
+
+                // same posterior as the filter of the robot on its own
+                double error = 0;
+                for(int i = 0; i < model.getNumStates(); i++)
+                    error = Math.max(error, Math.abs(blocks[0].getProbability(0, i) - filters[0].getProbability(i)));
+                if(round == 1 && error > 1e-9)
+                    System.out.println("  max difference with OnlineFilter: " + error);
+            }
+        }
+    }
+
+    private static void report(String name, long updates, long nanos, int round){
+        // the first round only warms the JIT up
+        if(round == 1)
+            System.out.println(String.format(Locale.ROOT, "%-24s %12.0f robot updates/s", name, updates / (nanos / 1e9)));
+    }
+}
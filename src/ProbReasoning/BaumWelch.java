@@ -0,0 +1,372 @@
+package ProbReasoning;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * BaumWelch
+ * expectation-maximization of the ModelParameters of a maze from sensor logs. The E step runs
+ * the scaled forward-backward pass over every log and adds up the expected number of times every
+ * transition was taken and every color was reported on every tile color; the logs are split
+ * across a ForkJoinPool and their counts merged, so the result does not depend on how they were
+ * split. The M step turns the counts into a new confusion matrix and new move and stay
+ * probabilities, and the next model is built from them.
+ *
+ * A stay in place can come from not moving or from bumping into a wall; its count is shared
+ * between the two in proportion to the current parameters. Parameters that start at zero stay at
+ * zero (a log that needs them gets a conflict step instead), so start from positive values, e.g.
+ * with some stay probability. The start belief is uniform and is not estimated, and missing
+ * readings only contribute their moves.
+ */
+public class BaumWelch {
+
+    // number of sequences below which a task is not split any further
+    private final static int SEQUENTIAL_THRESHOLD = 4;
+
+    private final Maze maze;
+    private final ForkJoinPool pool;
+
+    /**
+     * ExpectedCounts
+     * sufficient statistics of a set of sequences under one model, built by merging the counts of
+     * sub-batches
+     */
+    public static class ExpectedCounts {
+        public int numSequences;
+        public long numSteps;
+        public double logLikelihood;
+        public int numConflicts; // steps with a reading that is impossible under the model
+
+        // emission[observed][actual]: expected number of readings of each color on each tile color
+        public final double[][] emission = new double[SensorModel.NUM_COLORS][SensorModel.NUM_COLORS+1];
+
+        // expected number of times every entry of the transition matrix was taken
+        public final double[] transitions;
+
+        public ExpectedCounts(int nnz){
+            transitions = new double[nnz];
+        }
+
+        /**
+         * merge
+         * @param other counts of a disjoint set of sequences under the same model
+         * @return this
+         */
+        public ExpectedCounts merge(ExpectedCounts other){
+            numSequences += other.numSequences;
+            numSteps += other.numSteps;
+            logLikelihood += other.logLikelihood;
+            numConflicts += other.numConflicts;
+            for(int o = 0; o < SensorModel.NUM_COLORS; o++){
+                for(int a = 0; a <= SensorModel.NUM_COLORS; a++)
+                    emission[o][a] += other.emission[o][a];
+            }
+            for(int k = 0; k < transitions.length; k++)
+                transitions[k] += other.transitions[k];
+            return this;
+        }
+    }
+
+    /**
+     * Fit
+     * parameters at the end of fit, with the log likelihood of the logs before every iteration
+     */
+    public static class Fit {
+        public final ModelParameters parameters;
+        public final double[] logLikelihoods;
+
+        public Fit(ModelParameters parameters, double[] logLikelihoods){
+            this.parameters = parameters;
+            this.logLikelihoods = logLikelihoods;
+        }
+    }
+
+    /**
+     * Constructor for BaumWelch using the common fork-join pool
+     * @param maze
+     */
+    public BaumWelch(Maze maze){
+        this(maze, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Constructor for BaumWelch using a given fork-join pool
+     * @param maze
+     * @param pool
+     */
+    public BaumWelch(Maze maze, ForkJoinPool pool){
+        this.maze = maze;
+        this.pool = pool;
+    }
+
+    /**
+     * fit
+     * iterate E and M steps until the log likelihood stops improving
+     * @param sequences sensor logs, sensorData[0] is not used as in ProbabilisticReasoning
+     * @param start parameters of the first iteration
+     * @param maxIterations
+     * @param tolerance stop once an iteration improves the log likelihood by less than this
+     * @return the fitted parameters
+     */
+    public Fit fit(List<char[]> sequences, ModelParameters start, int maxIterations, double tolerance){
+        ModelParameters parameters = start;
+        List<Double> logLikelihoods = new ArrayList<>();
+        for(int iteration = 0; iteration < maxIterations; iteration++){
+            MazeModel model = new MazeModel(maze, parameters);
+            ExpectedCounts counts = expectedCounts(model, sequences);
+            logLikelihoods.add(counts.logLikelihood);
+            parameters = maximize(model, counts);
+            int n = logLikelihoods.size();
+            if(n > 1 && logLikelihoods.get(n-1) - logLikelihoods.get(n-2) < tolerance)
+                break;
+        }
+        double[] history = new double[logLikelihoods.size()];
+        for(int i = 0; i < history.length; i++)
+            history[i] = logLikelihoods.get(i);
+        return new Fit(parameters, history);
+    }
+
+    /**
+     * expectedCounts
+     * E step over every sequence in parallel
+     * @param model
+     * @param sequences
+     * @return counts over all sequences
+     */
+    public ExpectedCounts expectedCounts(MazeModel model, List<char[]> sequences){
+        return pool.invoke(new CountTask(model, sequences, 0, sequences.size()));
+    }
+
+    /**
+     * expectedCounts
+     * E step over one sequence on the calling thread
+     * @param model
+     * @param sensorData
+     * @return counts of the sequence
+     */
+    public static ExpectedCounts expectedCounts(MazeModel model, char[] sensorData){
+        ExpectedCounts counts = new ExpectedCounts(model.getTransition().nnz());
+        add(model, sensorData, counts);
+        return counts;
+    }
+
+    /**
+     * add
+     * helper function for expectedCounts: forward-backward over one sequence, adding its counts.
+     * With alpha[t] the filtered beliefs, c[t] the forward normalizers and b[t] the backward
+     * vectors scaled by them, P(state j at t | all readings) = alpha[t][j]*b[t][j] and the
+     * transition i to j into t is taken with probability alpha[t-1][i]*T[i][j]*e[t][j]*b[t][j]/c[t]
+     */
+    private static void add(MazeModel model, char[] sensorData, ExpectedCounts counts){
+        int numSteps = sensorData.length, numStates = model.getNumStates();
+        counts.numSequences++;
+        counts.numSteps += Math.max(0, numSteps - 1);
+        if(numSteps < 2)
+            return;
+
+        double[][] alpha = new double[numSteps][];
+        double[] scales = new double[numSteps];
+        alpha[0] = model.uniformBelief();
+        for(int t = 1; t < numSteps; t++){
+            alpha[t] = new double[numStates];
+            scales[t] = model.forwardStep(alpha[t-1], sensorData[t], alpha[t]);
+            if(scales[t] > 0)
+                counts.logLikelihood += Math.log(scales[t]);
+            else
+                counts.numConflicts++;
+        }
+
+        SparseMatrix transition = model.getTransition();
+        int[] rowPtr = transition.rowPtr;
+        int[] colIdx = transition.colIdx;
+        double[] values = transition.values;
+        byte[] stateColor = model.getSensor().stateColors();
+        double[] b = new double[numStates], bNext = new double[numStates], weighted = new double[numStates];
+        Arrays.fill(b, 1);
+        for(int t = numSteps-1; t >= 1; t--){
+            double c = scales[t];
+            double[] likelihood = model.getSensor().emissionRow(sensorData[t]);
+            if(c > 0){
+                // e[t][j]*b[t][j], and the reading counts on the way
+                double[] a = alpha[t];
+                int o = SensorModel.colorIndex(sensorData[t]);
+                for(int j = 0; j < numStates; j++){
+                    weighted[j] = (likelihood == null) ? b[j] : likelihood[stateColor[j]]*b[j];
+                    if(o != -1)
+                        counts.emission[o][stateColor[j]] += a[j]*b[j];
+                }
+                double[] prev = alpha[t-1];
+                double inverse = 1.0 / c;
+                for(int i = 0; i < numStates; i++){
+                    double p = prev[i]*inverse;
+                    if(p == 0)
+                        continue;
+                    for(int k = rowPtr[i]; k < rowPtr[i+1]; k++)
+                        counts.transitions[k] += p*values[k]*weighted[colIdx[k]];
+                }
+            }
+
+            // b[t-1], rescaled as in ProbabilisticReasoning.forwardBackward
+            model.backwardStep(b, sensorData[t], bNext);
+            if(c > 0){
+                for(int i = 0; i < numStates; i++)
+                    bNext[i] /= c;
+            }else{
+                double sum = 0;
+                for(int i = 0; i < numStates; i++)
+                    sum += bNext[i];
+                if(sum > 0)
+                    MazeModel.scaleRange(bNext, 1.0 / sum, 0, numStates);
+            }
+            double[] tmp = b;
+            b = bNext;
+            bNext = tmp;
+        }
+    }
+
+    /**
+     * maximize
+     * M step: the parameters that maximize the expected log likelihood of the counts
+     * @param model model the counts were taken under
+     * @param counts
+     * @return new parameters; a tile color that was never seen keeps its column of the emission
+     * table, and the motion is kept if no transition was counted
+     */
+    public ModelParameters maximize(MazeModel model, ExpectedCounts counts){
+        ModelParameters current = model.getParameters();
+        SparseMatrix transition = model.getTransition();
+
+        // motion: every counted entry is a move in one direction, or a stay shared between not
+        // moving and the blocked directions
+        double stayCount = 0;
+        double[] moveCount = new double[ModelParameters.NUM_DIRECTIONS];
+        for(int r = 0; r < maze.height; r++){
+            for(int c = 0; c < maze.width; c++){
+                int i = maze.getStates(r,c);
+                if(i == -1)
+                    continue;
+                for(int d = 0; d < ModelParameters.NUM_DIRECTIONS; d++){
+                    int[] offsets = ModelParameters.OFFSETS[d];
+                    if(maze.isLegal(r + offsets[0], c + offsets[1]))
+                        moveCount[d] += counts.transitions[entry(transition, i, maze.getStates(r + offsets[0], c + offsets[1]))];
+                }
+                int self = entry(transition, i, i);
+                double stayed = counts.transitions[self], p = transition.values[self];
+                if(stayed == 0 || p == 0)
+                    continue;
+                stayCount += stayed*current.getStay()/p;
+                for(int d = 0; d < ModelParameters.NUM_DIRECTIONS; d++){
+                    int[] offsets = ModelParameters.OFFSETS[d];
+                    if(!maze.isLegal(r + offsets[0], c + offsets[1]))
+                        moveCount[d] += stayed*current.getMove(d)/p;
+                }
+            }
+        }
+        double total = stayCount;
+        for(double count: moveCount)
+            total += count;
+        double stay = current.getStay();
+        double[] move = new double[ModelParameters.NUM_DIRECTIONS];
+        for(int d = 0; d < move.length; d++)
+            move[d] = current.getMove(d);
+        if(total > 0){
+            stay = stayCount / total;
+            for(int d = 0; d < move.length; d++)
+                move[d] = moveCount[d] / total;
+        }
+
+        // sensor: every column is the distribution of the readings on that tile color
+        double[][] emission = current.emissionTable();
+        for(int a = 0; a <= SensorModel.NUM_COLORS; a++){
+            double sum = 0;
+            for(int o = 0; o < SensorModel.NUM_COLORS; o++)
+                sum += counts.emission[o][a];
+            if(sum > 0){
+                for(int o = 0; o < SensorModel.NUM_COLORS; o++)
+                    emission[o][a] = counts.emission[o][a] / sum;
+            }
+        }
+        return new ModelParameters(emission, move, stay);
+    }
+
+    /**
+     * entry
+     * helper function for maximize: index of the entry (i, j) in the arrays of a matrix
+     */
+    private static int entry(SparseMatrix matrix, int i, int j){
+        for(int k = matrix.rowPtr[i]; k < matrix.rowPtr[i+1]; k++){
+            if(matrix.colIdx[k] == j)
+                return k;
+        }
+        throw new IllegalStateException("No transition from state " + i + " to " + j);
+    }
+
+    /**
+     * CountTask
+     * fork-join task running the E step over a range of sequences and merging their counts
+     */
+    private static class CountTask extends RecursiveTask<ExpectedCounts> {
+        private final static long serialVersionUID = 1L;
+
+        private final MazeModel model;
+        private final List<char[]> sequences;
+        private final int from, to;
+
+        CountTask(MazeModel model, List<char[]> sequences, int from, int to){
+            this.model = model;
+            this.sequences = sequences;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected ExpectedCounts compute(){
+            if(to - from <= SEQUENTIAL_THRESHOLD){
+                ExpectedCounts counts = new ExpectedCounts(model.getTransition().nnz());
+                for(int i = from; i < to; i++)
+                    add(model, sequences.get(i), counts);
+                return counts;
+            }
+            int mid = (from + to) >>> 1;
+            CountTask left = new CountTask(model, sequences, from, mid);
+            left.fork();
+            ExpectedCounts right = new CountTask(model, sequences, mid, to).compute();
+            return left.join().merge(right);
+        }
+    }
+
+    /**
+     * main
+     * simulate robots with known parameters and fit them back from their readings
+     */
+    public static void main(String[] args){
+        Maze maze = (args.length > 0) ? Maze.readFromFile(args[0]) : MazeGenerator.generate(40, 40, 0.2, 1);
+        double[][] emission = new double[SensorModel.NUM_COLORS][SensorModel.NUM_COLORS+1];
+        for(int o = 0; o < SensorModel.NUM_COLORS; o++){
+            for(int a = 0; a <= SensorModel.NUM_COLORS; a++)
+                emission[o][a] = (a == SensorModel.UNKNOWN_COLOR) ? 0.25 : (o == a) ? 0.7 : 0.1;
+        }
+        ModelParameters truth = new ModelParameters(emission, new double[]{0.3, 0.2, 0.2, 0.1}, 0.2);
+
+        List<char[]> sequences = new ArrayList<>();
+        for(MazeGenerator.Trajectory trajectory: MazeGenerator.simulateMany(maze, truth, 100, 300, 2))
+            sequences.add(trajectory.sensorData);
+
+        // the default sensor and a uniform motion with some chance of staying put
+        ModelParameters start = new ModelParameters(ModelParameters.DEFAULT.emissionTable(),
+                new double[]{0.2, 0.2, 0.2, 0.2}, 0.2);
+        long before = System.nanoTime();
+        Fit fit = new BaumWelch(maze).fit(sequences, start, 25, 1e-2);
+        long elapsed = System.nanoTime() - before;
+
+        for(int i = 0; i < fit.logLikelihoods.length; i++)
+            System.out.println(String.format(Locale.ROOT, "iteration %2d: log likelihood %.3f", i, fit.logLikelihoods[i]));
+        System.out.println(String.format(Locale.ROOT, "%d iterations in %.1f ms%n", fit.logLikelihoods.length, elapsed / 1e6));
+        System.out.println("true parameters:\n" + truth);
+        System.out.println("fitted parameters:\n" + fit.parameters);
+    }
+}
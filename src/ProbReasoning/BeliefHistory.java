@@ -0,0 +1,47 @@
+package ProbReasoning;
+
+/**
+ * BeliefHistory
+ * storage for one belief vector per time step, as filled by ProbabilisticReasoning (the forward
+ * vectors and the smoothed vectors). HeapBeliefHistory keeps the rows as double arrays on the
+ * heap; MappedBeliefHistory keeps them in a memory-mapped file, which keeps long runs on large
+ * mazes out of the heap and can be reopened later.
+ */
+public interface BeliefHistory extends AutoCloseable {
+
+    int getNumSteps();
+
+    int getNumStates();
+
+    /**
+     * get
+     * @param t time step
+     * @param stateNum
+     * @return probability of stateNum at time step t
+     */
+    double get(int t, int stateNum);
+
+    /**
+     * read
+     * copy the vector of a time step into a caller supplied vector
+     * @param t time step
+     * @param dest vector of length numStates
+     * @return dest
+     */
+    double[] read(int t, double[] dest);
+
+    /**
+     * write
+     * store the vector of a time step
+     * @param t time step
+     * @param src vector of length numStates
+     */
+    void write(int t, double[] src);
+
+    /**
+     * close
+     * release the storage; the history must not be used afterwards
+     */
+    @Override
+    void close();
+}
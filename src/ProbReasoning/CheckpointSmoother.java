@@ -0,0 +1,154 @@
+package ProbReasoning;
+
+import java.util.Arrays;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * CheckpointSmoother
+ * forward-backward smoothing in O(sqrt(T)*numStates) memory. The forward pass keeps the forward
+ * message only every interval steps (a checkpoint). The backward pass walks the segments from the
+ * last to the first, recomputes the forward messages of one segment from its checkpoint and
+ * combines them with the backward message. Smoothed marginals are handed to a consumer as soon as
+ * they are known instead of being stored, at the cost of running the forward pass twice.
+ *
+ * Time steps are interpreted the same way as in ProbabilisticReasoning: the belief at time step 0
+ * is the start vector and sensorData[0] is not used by the forward pass.
+ */
+public class CheckpointSmoother {
+
+    private final MazeModel model;
+    private final int interval;
+    private double logLikelihood;
+
+    /**
+     * Constructor for CheckpointSmoother with an interval of about sqrt(T) chosen per sequence
+     * @param model
+     */
+    public CheckpointSmoother(MazeModel model){
+        this(model, 0);
+    }
+
+    /**
+     * Constructor for CheckpointSmoother with a fixed checkpoint interval
+     * @param model
+     * @param interval number of time steps between checkpoints, 0 to use about sqrt(T)
+     */
+    public CheckpointSmoother(MazeModel model, int interval){
+        if(interval < 0)
+            throw new IllegalArgumentException("Checkpoint interval must not be negative");
+        this.model = model;
+        this.interval = interval;
+    }
+
+    /**
+     * smooth
+     * function to compute the smoothed marginal of every time step, starting from a uniform belief
+     * @param sensorData
+     * @param consumer receives (marginal, t) for t = T-1 down to 0. The array is reused between
+     *                 calls and must be copied if it is kept
+     */
+    public void smooth(char[] sensorData, ObjIntConsumer<double[]> consumer){
+        smooth(model.uniformBelief(), sensorData, consumer);
+    }
+
+    /**
+     * smooth
+     * function to compute the smoothed marginal of every time step
+     * @param start belief at time step 0
+     * @param sensorData
+     * @param consumer receives (marginal, t) for t = T-1 down to 0. The array is reused between
+     *                 calls and must be copied if it is kept
+     */
+    public void smooth(double[] start, char[] sensorData, ObjIntConsumer<double[]> consumer){
+        int numSteps = sensorData.length;
+        int numStates = model.getNumStates();
+        if(numSteps == 0)
+            return;
+        int step = (interval > 0) ? interval : Math.max(1, (int) Math.ceil(Math.sqrt(numSteps)));
+        int numSegments = (numSteps + step - 1) / step;
+
+        // forward pass, keeping only the belief at the start of every segment
+        double[][] checkpoints = new double[numSegments][];
+        double[] f = start.clone();
+        double[] fNext = new double[numStates];
+        logLikelihood = 0;
+        checkpoints[0] = f.clone();
+        for(int t = 1; t < numSteps; t++){
+            logLikelihood += Math.log(model.forwardStep(f, sensorData[t], fNext));
+            double[] tmp = f;
+            f = fNext;
+            fNext = tmp;
+            if(t % step == 0)
+                checkpoints[t / step] = f.clone();
+        }
+
+        // backward pass, one segment at a time
+        double[][] segment = new double[step][numStates];
+        double[] b = new double[numStates];
+        double[] bNext = new double[numStates];
+        double[] fb = new double[numStates];
+        Arrays.fill(b, 1);
+
+        for(int s = numSegments-1; s >= 0; s--){
+            int first = s*step;
+            int last = Math.min(first + step, numSteps) - 1;
+
+            // recompute the forward messages of the segment from its checkpoint
+            System.arraycopy(checkpoints[s], 0, segment[0], 0, numStates);
+            for(int t = first+1; t <= last; t++)
+                model.forwardStep(segment[t-first-1], sensorData[t], segment[t-first]);
+            checkpoints[s] = null;
+
+            for(int t = last; t >= first; t--){
+                double[] ft = segment[t-first];
+                double sum = 0;
+                for(int i = 0; i < numStates; i++){
+                    fb[i] = ft[i]*b[i];
+                    sum += fb[i];
+                }
+                if(sum > 0){
+                    for(int i = 0; i < numStates; i++)
+                        fb[i] /= sum;
+                }else{
+                    // the backward message vanished on conflicting readings, fall back to filtering
+                    System.arraycopy(ft, 0, fb, 0, numStates);
+                }
+                consumer.accept(fb, t);
+
+                if(t > 0){
+                    // b[t-1] = transition*sensor[t]*b[t], rescaled so that it cannot underflow;
+                    // conflicting readings restart it from the uniform message
+                    model.backwardStep(b, sensorData[t], bNext);
+                    MazeModel.normalizeOrUniform(bNext);
+                    double[] tmp = b;
+                    b = bNext;
+                    bNext = tmp;
+                }
+            }
+        }
+    }
+
+    /**
+     * smooth
+     * convenience function to store every smoothed marginal, mainly for short sequences
+     * @param sensorData
+     * @return smoothed marginal of every time step
+     */
+    public double[][] smooth(char[] sensorData){
+        double[][] result = new double[sensorData.length][];
+        smooth(sensorData, (marginal, t) -> result[t] = marginal.clone());
+        return result;
+    }
+
+    /**
+     * getLogLikelihood
+     * @return log probability of the readings of the last smoothed sequence
+     */
+    public double getLogLikelihood(){
+        return logLikelihood;
+    }
+
+    public int getInterval(){
+        return interval;
+    }
+}
@@ -0,0 +1,150 @@
+package ProbReasoning;
+
+import java.util.Arrays;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * FixedLagSmoother
+ * online smoother that emits the smoothed belief of time step t-lag as soon as the reading of
+ * time step t arrives. The last lag+1 forward messages and the last lag readings are kept in a
+ * ring buffer, and the backward recursion of ProbabilisticReasoning.backward is run over that
+ * window only. Memory is O(lag*numStates) and every update costs O(lag*nnz).
+ *
+ * Time step 0 is the start belief and every reading advances one time step, as in OnlineFilter.
+ * An instance is not thread-safe.
+ */
+public class FixedLagSmoother {
+
+    private final MazeModel model;
+    private final int lag;
+
+    // ring buffers indexed by time step modulo size = lag+2, one slot more than the window so
+    // that the forward step never writes into the message it reads
+    private final int size;
+    private final double[][] forward;
+    private final char[] readings;
+
+    private final double[] b, bNext, smoothed;
+    private long t; // a stream can run past 2^31 readings
+
+    /**
+     * Constructor for FixedLagSmoother starting from a uniform belief
+     * @param model
+     * @param lag number of readings to wait for before a time step is smoothed, 0 for filtering
+     */
+    public FixedLagSmoother(MazeModel model, int lag){
+        this(model, lag, model.uniformBelief());
+    }
+
+    /**
+     * Constructor for FixedLagSmoother starting from a given belief
+     * @param model
+     * @param lag number of readings to wait for before a time step is smoothed, 0 for filtering
+     * @param start belief at time step 0, copied
+     */
+    public FixedLagSmoother(MazeModel model, int lag, double[] start){
+        if(lag < 0)
+            throw new IllegalArgumentException("Lag must not be negative");
+        int numStates = model.getNumStates();
+        if(start.length != numStates)
+            throw new IllegalArgumentException("Start belief has " + start.length + " states, model has "
+                    + numStates);
+        this.model = model;
+        this.lag = lag;
+        size = lag + 2;
+        forward = new double[size][numStates];
+        readings = new char[size];
+        b = new double[numStates];
+        bNext = new double[numStates];
+        smoothed = new double[numStates];
+        System.arraycopy(start, 0, forward[0], 0, numStates);
+    }
+
+    /**
+     * update
+     * consume the reading of the next time step t
+     * @param color color reported by the sensor, any other character is a missing reading
+     * @return the smoothed belief of time step t-lag, or null while fewer than lag readings have
+     * been consumed. The array is reused by the next call and must be copied if it is kept
+     */
+    public double[] update(char color){
+        int prev = (int) (t % size);
+        t++;
+        int curr = (int) (t % size);
+        model.forwardStep(forward[prev], color, forward[curr]);
+        readings[curr] = color;
+
+        if(t < lag)
+            return null;
+        return smooth(t - lag);
+    }
+
+    /**
+     * flush
+     * emit the smoothed beliefs of the last lag time steps, which have not been emitted by update
+     * yet, using all the readings consumed so far. Meant for the end of a stream
+     * @param consumer receives (belief, time step) in increasing time order. The array is reused
+     *                 between calls and must be copied if it is kept
+     */
+    public void flush(ObjLongConsumer<double[]> consumer){
+        for(long s = Math.max(0, t - lag + 1); s <= t; s++)
+            consumer.accept(smooth(s), s);
+    }
+
+    /**
+     * smooth
+     * helper function: combine the forward message of time step s with the backward message of
+     * the readings s+1..t, all of which are still in the ring buffer
+     * @param s time step, t-lag <= s <= t
+     * @return smoothed belief of time step s
+     */
+    private double[] smooth(long s){
+        int numStates = model.getNumStates();
+        double[] bCurr = b, bOther = bNext;
+        Arrays.fill(bCurr, 1);
+
+        for(long k = t; k > s; k--){
+            // b[k-1] = transition*sensor[k]*b[k], rescaled so that it cannot underflow; conflicting
+            // readings restart it from the uniform message rather than fill the belief with NaN
+            model.backwardStep(bCurr, readings[(int) (k % size)], bOther);
+            MazeModel.normalizeOrUniform(bOther);
+            double[] tmp = bCurr;
+            bCurr = bOther;
+            bOther = tmp;
+        }
+
+        double[] f = forward[(int) (s % size)];
+        double sum = 0;
+        for(int i = 0; i < numStates; i++){
+            smoothed[i] = f[i]*bCurr[i];
+            sum += smoothed[i];
+        }
+        if(sum > 0){
+            for(int i = 0; i < numStates; i++)
+                smoothed[i] /= sum;
+        }else{
+            System.arraycopy(f, 0, smoothed, 0, numStates);
+        }
+        return smoothed;
+    }
+
+    /**
+     * currentBelief
+     * @return a copy of the filtered (not smoothed) belief of the latest time step
+     */
+    public double[] currentBelief(){
+        return forward[(int) (t % size)].clone();
+    }
+
+    /**
+     * getTimeStep
+     * @return time step of the latest reading
+     */
+    public long getTimeStep(){
+        return t;
+    }
+
+    public int getLag(){
+        return lag;
+    }
+}
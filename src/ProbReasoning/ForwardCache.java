@@ -0,0 +1,384 @@
+package ProbReasoning;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.SplittableRandom;
+
+/**
+ * ForwardCache
+ * cache of forward messages for sensor logs that share prefixes (replays, edits of the tail, logs
+ * starting the same way). The messages are kept in a trie over the readings r, g, b, y (and one
+ * branch for missing readings): the node reached by sensorData[1..t] holds the belief at time
+ * step t, as computed by ProbabilisticReasoning.forward from a uniform start. A query walks down
+ * the trie as far as the log matches, starts from the deepest stored message and only computes
+ * the steps after it.
+ *
+ * The trie is path-compressed: a node only exists where a message is stored or where logs part,
+ * and the readings between a node and its parent are kept as a label on the node, one byte per
+ * step. The messages are stored every interval steps along a log and at its last step. The
+ * messages, the nodes and their labels all count against the memory budget; beyond it the least
+ * recently used message is dropped and the nodes that no longer lead to a message are pruned or
+ * merged. The cache is thread-safe; the forward steps of a query run outside the lock.
+ */
+public class ForwardCache {
+
+    private final static int NUM_BRANCHES = SensorModel.NUM_COLORS + 1;
+
+    // estimated heap bytes of a node with its child and label arrays, label bytes not counted
+    private final static long NODE_BYTES = 112;
+    private final static byte[] NO_LABEL = new byte[0];
+
+    private final MazeModel model;
+    private final int interval;
+    private final long maxBytes;
+    private final long messageBytes;
+
+    // root is time step 0; head is the sentinel of the LRU list of nodes holding a message
+    private final Node root;
+    private final Node head = new Node(null, NO_LABEL, 0);
+    private long numStored, numNodes, usedBytes;
+
+    // statistics
+    private long numQueries, numHits, stepsReused, stepsComputed, numEvictions;
+
+    /**
+     * Node
+     * one prefix of readings, with its forward message if stored. Children are indexed by the
+     * first byte of their label
+     */
+    private static class Node {
+        Node parent;
+        byte[] label; // branches of the readings at time steps parent.depth+1..depth
+        final int depth;
+        final Node[] children = new Node[NUM_BRANCHES];
+        int numChildren;
+        double[] belief;
+        double logLikelihood;
+        Node prev, next; // LRU list, while belief != null
+
+        Node(Node parent, byte[] label, int depth){
+            this.parent = parent;
+            this.label = label;
+            this.depth = depth;
+        }
+    }
+
+    /**
+     * Constructor for ForwardCache storing the message of every step
+     * @param model
+     * @param maxBytes memory budget for the stored messages and the trie
+     */
+    public ForwardCache(MazeModel model, long maxBytes){
+        this(model, maxBytes, 1);
+    }
+
+    /**
+     * Constructor for ForwardCache
+     * @param model
+     * @param maxBytes memory budget for the stored messages and the trie
+     * @param interval a message is stored every interval steps (and at the last step of a log)
+     */
+    public ForwardCache(MazeModel model, long maxBytes, int interval){
+        if(interval < 1)
+            throw new IllegalArgumentException("Interval must be positive");
+        this.model = model;
+        this.interval = interval;
+        this.maxBytes = maxBytes;
+        this.messageBytes = 16 + 8L*model.getNumStates();
+        root = new Node(null, NO_LABEL, 0);
+        root.belief = model.uniformBelief();
+        head.prev = head;
+        head.next = head;
+    }
+
+    /**
+     * filter
+     * forward filtering of a sensor log, reusing the longest cached prefix
+     * @param sensorData readings, sensorData[0] is not used as in ProbabilisticReasoning
+     * @return the belief at the last time step and the log likelihood of the readings
+     */
+    public BatchRunner.Result filter(char[] sensorData){
+        int numSteps = sensorData.length;
+        double[] belief = new double[model.getNumStates()];
+        double[] scratch = new double[model.getNumStates()];
+        int start;
+        double logLikelihood;
+
+        // longest stored prefix
+        synchronized(this){
+            numQueries++;
+            Node node = root, best = root;
+            while(node.depth + 1 < numSteps){
+                Node child = node.children[branch(sensorData[node.depth + 1])];
+                if(child == null || match(child, sensorData, numSteps - 1) < child.label.length)
+                    break;
+                node = child;
+                if(node.belief != null)
+                    best = node;
+            }
+            if(best != root){
+                numHits++;
+                touch(best);
+            }
+            System.arraycopy(best.belief, 0, belief, 0, belief.length);
+            logLikelihood = best.logLikelihood;
+            start = best.depth;
+            stepsReused += start;
+            stepsComputed += Math.max(0, numSteps - 1 - start);
+        }
+
+        // compute the rest, keeping copies of the messages to store
+        List<double[]> messages = new ArrayList<>();
+        List<Integer> depths = new ArrayList<>();
+        List<Double> logLikelihoods = new ArrayList<>();
+        for(int t = start + 1; t < numSteps; t++){
+            logLikelihood += Math.log(model.forwardStep(belief, sensorData[t], scratch));
+            double[] tmp = belief;
+            belief = scratch;
+            scratch = tmp;
+            if(t % interval == 0 || t == numSteps - 1){
+                messages.add(belief.clone());
+                depths.add(t);
+                logLikelihoods.add(logLikelihood);
+            }
+        }
+
+        if(!messages.isEmpty()){
+            synchronized(this){
+                insert(sensorData, messages, depths, logLikelihoods);
+            }
+        }
+        return new BatchRunner.Result(belief, logLikelihood);
+    }
+
+    /**
+     * insert
+     * helper function for filter: create the path of a log and store messages along it
+     */
+    private void insert(char[] sensorData, List<double[]> messages, List<Integer> depths, List<Double> logLikelihoods){
+        Node node = root;
+        for(int m = 0; m < messages.size(); m++){
+            node = descend(node, sensorData, depths.get(m));
+            if(node.belief == null){
+                node.belief = messages.get(m);
+                node.logLikelihood = logLikelihoods.get(m);
+                numStored++;
+                usedBytes += messageBytes;
+            }
+            touch(node);
+        }
+        while(usedBytes > maxBytes && numStored > 0)
+            evict(head.prev);
+    }
+
+    /**
+     * descend
+     * helper function for insert: the node at a given depth on the path of a log below node,
+     * creating it (and splitting the edge it falls on) if needed
+     */
+    private Node descend(Node node, char[] sensorData, int depth){
+        while(node.depth < depth){
+            int b = branch(sensorData[node.depth + 1]);
+            Node child = node.children[b];
+            if(child == null){
+                byte[] label = new byte[depth - node.depth];
+                for(int k = 0; k < label.length; k++)
+                    label[k] = (byte) branch(sensorData[node.depth + 1 + k]);
+                child = new Node(node, label, depth);
+                node.children[b] = child;
+                node.numChildren++;
+                numNodes++;
+                usedBytes += NODE_BYTES + label.length;
+                return child;
+            }
+            int k = match(child, sensorData, depth);
+            node = (k < child.label.length) ? split(child, k) : child;
+        }
+        return node;
+    }
+
+    /**
+     * match
+     * helper function: number of leading readings of the label of a node that agree with a log,
+     * comparing no further than time step last
+     */
+    private static int match(Node node, char[] sensorData, int last){
+        int first = node.parent.depth + 1;
+        int n = Math.min(node.label.length, last - first + 1);
+        int k = 0;
+        while(k < n && node.label[k] == branch(sensorData[first + k]))
+            k++;
+        return k;
+    }
+
+    /**
+     * split
+     * helper function for descend: insert a node holding the first k readings of the label of a
+     * node between it and its parent, 0 < k < label length
+     * @return the new node
+     */
+    private Node split(Node node, int k){
+        Node parent = node.parent;
+        Node mid = new Node(parent, Arrays.copyOf(node.label, k), parent.depth + k);
+        parent.children[mid.label[0]] = mid;
+        node.label = Arrays.copyOfRange(node.label, k, node.label.length);
+        node.parent = mid;
+        mid.children[node.label[0]] = node;
+        mid.numChildren = 1;
+        numNodes++;
+        usedBytes += NODE_BYTES; // the label bytes are only moved
+        return mid;
+    }
+
+    /**
+     * touch
+     * move a node holding a message to the front of the LRU list
+     */
+    private void touch(Node node){
+        if(node.prev != null){
+            node.prev.next = node.next;
+            node.next.prev = node.prev;
+        }
+        node.next = head.next;
+        node.prev = head;
+        head.next.prev = node;
+        head.next = node;
+    }
+
+    /**
+     * evict
+     * drop the message of a node, then prune the nodes that no longer lead to a message and merge
+     * the ones left with a single child and no message into that child
+     */
+    private void evict(Node node){
+        node.prev.next = node.next;
+        node.next.prev = node.prev;
+        node.prev = null;
+        node.next = null;
+        node.belief = null;
+        numStored--;
+        usedBytes -= messageBytes;
+        numEvictions++;
+        while(node != root && node.belief == null){
+            Node parent = node.parent;
+            if(node.numChildren == 0){
+                parent.children[node.label[0]] = null;
+                parent.numChildren--;
+                numNodes--;
+                usedBytes -= NODE_BYTES + node.label.length;
+                node = parent;
+                continue;
+            }
+            if(node.numChildren == 1){
+                Node child = null;
+                for(Node c: node.children){
+                    if(c != null)
+                        child = c;
+                }
+                byte[] label = Arrays.copyOf(node.label, node.label.length + child.label.length);
+                System.arraycopy(child.label, 0, label, node.label.length, child.label.length);
+                child.label = label;
+                child.parent = parent;
+                parent.children[label[0]] = child;
+                numNodes--;
+                usedBytes -= NODE_BYTES;
+            }
+            break;
+        }
+    }
+
+    private static int branch(char color){
+        int index = SensorModel.colorIndex(color);
+        return (index == -1) ? SensorModel.NUM_COLORS : index;
+    }
+
+    /**
+     * clear
+     * drop every stored message, the statistics are kept
+     */
+    public synchronized void clear(){
+        Arrays.fill(root.children, null);
+        root.numChildren = 0;
+        head.prev = head;
+        head.next = head;
+        numStored = 0;
+        numNodes = 0;
+        usedBytes = 0;
+    }
+
+    public synchronized long getNumStored(){
+        return numStored;
+    }
+
+    /**
+     * getUsedBytes
+     * @return estimated bytes held by the stored messages and the trie, at most the budget
+     */
+    public synchronized long getUsedBytes(){
+        return usedBytes;
+    }
+
+    public long getMaxBytes(){
+        return maxBytes;
+    }
+
+    /**
+     * getHitRate
+     * @return fraction of the steps of all queries that were taken from the cache
+     */
+    public synchronized double getHitRate(){
+        long total = stepsReused + stepsComputed;
+        return (total == 0) ? 0 : (double) stepsReused / total;
+    }
+
+    public synchronized String toString(){
+        return String.format(Locale.ROOT,
+                "%d queries, %d hits, %d steps reused, %d computed (hit rate %.3f), %d messages and %d nodes stored in %d of %d bytes, %d evicted",
+                numQueries, numHits, stepsReused, stepsComputed, getHitRate(), numStored, numNodes, usedBytes, maxBytes,
+                numEvictions);
+    }
+
+    /**
+     * main
+     * replay logs that share their first part, with and without the cache
+     */
+    public static void main(String[] args){
+        Maze maze = MazeGenerator.generate(100, 100, 0.2, 1);
+        MazeModel model = new MazeModel(maze);
+        int numLogs = 200, numSteps = 500, tail = 50;
+
+        // a few base logs, every query is one of them with its last readings replaced
+        SplittableRandom random = new SplittableRandom(2);
+        MazeGenerator.Trajectory[] bases = MazeGenerator.simulateMany(maze, 10, numSteps - 1, 3);
+        List<char[]> logs = new ArrayList<>();
+        for(int i = 0; i < numLogs; i++){
+            char[] log = bases[random.nextInt(bases.length)].sensorData.clone();
+            for(int t = numSteps - 1 - random.nextInt(tail); t < numSteps; t++)
+                log[t] = SensorModel.COLORS[random.nextInt(SensorModel.NUM_COLORS)];
+            logs.add(log);
+        }
+
+        for(int round = 0; round < 2; round++){
+            long start = System.nanoTime();
+            double check = 0;
+            for(char[] log: logs)
+                check += new ProbabilisticReasoning(model, log, false).getLogLikelihood();
+            long uncached = System.nanoTime() - start;
+
+            ForwardCache cache = new ForwardCache(model, 64L << 20, 10);
+            start = System.nanoTime();
+            double cachedCheck = 0;
+            for(char[] log: logs)
+                cachedCheck += cache.filter(log).logLikelihood;
+            long cached = System.nanoTime() - start;
+
+            if(round == 1){
+                System.out.printf(Locale.ROOT, "without cache %.1f ms, with cache %.1f ms (log likelihoods differ by %.2e)%n",
+                        uncached / 1e6, cached / 1e6, Math.abs(check - cachedCheck));
+                System.out.println(cache);
+            }
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package ProbReasoning;
+
+/**
+ * HeapBeliefHistory
+ * belief history held in a double[numSteps][numStates] on the heap, the default store of
+ * ProbabilisticReasoning
+ */
+public class HeapBeliefHistory implements BeliefHistory {
+
+    private final double[][] rows;
+    private final int numStates;
+
+    /**
+     * Constructor for HeapBeliefHistory, every entry starting at zero
+     * @param numSteps
+     * @param numStates
+     */
+    public HeapBeliefHistory(int numSteps, int numStates){
+        this.rows = new double[numSteps][numStates];
+        this.numStates = numStates;
+    }
+
+    @Override
+    public int getNumSteps(){
+        return rows.length;
+    }
+
+    @Override
+    public int getNumStates(){
+        return numStates;
+    }
+
+    @Override
+    public double get(int t, int stateNum){
+        return rows[t][stateNum];
+    }
+
+    @Override
+    public double[] read(int t, double[] dest){
+        System.arraycopy(rows[t], 0, dest, 0, numStates);
+        return dest;
+    }
+
+    @Override
+    public void write(int t, double[] src){
+        if(src != rows[t])
+            System.arraycopy(src, 0, rows[t], 0, numStates);
+    }
+
+    /**
+     * row
+     * @param t time step
+     * @return the array holding time step t itself, so that the kernels can write into it directly
+     */
+    public double[] row(int t){
+        return rows[t];
+    }
+
+    /**
+     * rows
+     * @return the arrays of every time step, not copied
+     */
+    public double[][] rows(){
+        return rows;
+    }
+
+    @Override
+    public void close(){
+    }
+}
@@ -0,0 +1,31 @@
+package ProbReasoning;
+
+/**
+ * InferenceListener
+ * receives measurements from the hot paths of inference: model construction and every forward
+ * step of OnlineFilter and ProbabilisticReasoning. Listeners are registered with Metrics; while
+ * none is registered the hot paths only read one volatile field per step. The callbacks run on
+ * the thread doing the work, so they must be thread-safe and quick.
+ */
+public interface InferenceListener {
+
+    /**
+     * modelBuilt
+     * @param model the model that was built
+     * @param nanos time taken to build its transition and sensor models
+     */
+    default void modelBuilt(MazeModel model, long nanos){
+    }
+
+    /**
+     * stepCompleted
+     * @param nanos time taken by the step
+     * @param allocatedBytes bytes allocated by the thread during the step, -1 if the JVM cannot
+     *                       measure it
+     * @param normalizer normalizing constant of the step, zero for a reading that is impossible
+     *                   under the model
+     * @param belief belief after the step, not to be modified or kept
+     */
+    default void stepCompleted(long nanos, long allocatedBytes, double normalizer, double[] belief){
+    }
+}
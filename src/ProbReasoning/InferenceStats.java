@@ -0,0 +1,240 @@
+package ProbReasoning;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.DoubleAccumulator;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * InferenceStats
+ * listener keeping aggregate metrics of every step it is told about: a latency histogram, bytes
+ * allocated, normalizers (a sudden drop means the readings no longer fit the model), and the
+ * entropy and peak mass of the beliefs (how sure the filters are). Register it with Metrics and,
+ * to read it remotely, with the platform MBean server. It is thread-safe.
+ *
+ * The entropy and peak mass cost a pass over the belief, with a logarithm per state, which is
+ * about as much as the step itself; they can be taken on a random sample of the steps instead.
+ */
+public class InferenceStats implements InferenceListener, InferenceStatsMBean {
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LongAdder allocated = new LongAdder();
+    private final LongAdder measuredSteps = new LongAdder(); // steps with a known allocation
+    private final LongAdder conflicts = new LongAdder();
+    private final DoubleAdder sumLogNormalizer = new DoubleAdder();
+    private final DoubleAccumulator minNormalizer = new DoubleAccumulator(Math::min, Double.POSITIVE_INFINITY);
+    private final int beliefSampling;
+    private final LongAdder sampledSteps = new LongAdder();
+    private final DoubleAdder sumEntropy = new DoubleAdder();
+    private final DoubleAdder sumPeakMass = new DoubleAdder();
+    private volatile double lastEntropy, lastPeakMass;
+
+    private final LongAdder modelsBuilt = new LongAdder();
+    private volatile long lastModelBuildNanos;
+
+    /**
+     * Constructor for InferenceStats looking at the belief of every step
+     */
+    public InferenceStats(){
+        this(1);
+    }
+
+    /**
+     * Constructor for InferenceStats
+     * @param beliefSampling the entropy and peak mass are taken on one step in beliefSampling on
+     *                       average, picked at random
+     */
+    public InferenceStats(int beliefSampling){
+        if(beliefSampling < 1)
+            throw new IllegalArgumentException("Belief sampling must be positive");
+        this.beliefSampling = beliefSampling;
+    }
+
+    @Override
+    public void modelBuilt(MazeModel model, long nanos){
+        modelsBuilt.increment();
+        lastModelBuildNanos = nanos;
+    }
+
+    @Override
+    public void stepCompleted(long nanos, long allocatedBytes, double normalizer, double[] belief){
+        latency.record(nanos);
+        if(allocatedBytes >= 0){
+            allocated.add(allocatedBytes);
+            measuredSteps.increment();
+        }
+        if(normalizer > 0){
+            sumLogNormalizer.add(Math.log(normalizer));
+            minNormalizer.accumulate(normalizer);
+        }else{
+            conflicts.increment();
+        }
+
+        if(beliefSampling > 1 && ThreadLocalRandom.current().nextInt(beliefSampling) != 0)
+            return;
+        double entropy = entropy(belief), peak = peakMass(belief);
+        sampledSteps.increment();
+        sumEntropy.add(entropy);
+        sumPeakMass.add(peak);
+        lastEntropy = entropy;
+        lastPeakMass = peak;
+    }
+
+    /**
+     * entropy
+     * @param belief
+     * @return entropy of the belief in nats: 0 when the robot is located, log(numStates) for a
+     * uniform belief
+     */
+    public static double entropy(double[] belief){
+        double entropy = 0;
+        for(double p: belief){
+            if(p > 0)
+                entropy -= p*Math.log(p);
+        }
+        return entropy;
+    }
+
+    /**
+     * peakMass
+     * @param belief
+     * @return probability of the most likely state
+     */
+    public static double peakMass(double[] belief){
+        double peak = 0;
+        for(double p: belief)
+            peak = Math.max(peak, p);
+        return peak;
+    }
+
+    /**
+     * registerMBean
+     * make the metrics readable over JMX under ProbReasoning:type=InferenceStats,name=name
+     * @param name
+     * @return the name it was registered under
+     */
+    public ObjectName registerMBean(String name) throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName objectName = new ObjectName("ProbReasoning:type=InferenceStats,name=" + ObjectName.quote(name));
+        server.registerMBean(this, objectName);
+        return objectName;
+    }
+
+    public LatencyHistogram getLatency(){
+        return latency;
+    }
+
+    @Override
+    public long getModelsBuilt(){
+        return modelsBuilt.sum();
+    }
+
+    @Override
+    public double getLastModelBuildMillis(){
+        return lastModelBuildNanos / 1e6;
+    }
+
+    @Override
+    public long getSteps(){
+        return latency.getCount();
+    }
+
+    @Override
+    public double getStepMeanMicros(){
+        return latency.getMean() / 1e3;
+    }
+
+    @Override
+    public double getStepP50Micros(){
+        return latency.percentile(0.50) / 1e3;
+    }
+
+    @Override
+    public double getStepP99Micros(){
+        return latency.percentile(0.99) / 1e3;
+    }
+
+    @Override
+    public double getStepMaxMicros(){
+        return latency.getMax() / 1e3;
+    }
+
+    @Override
+    public double getAllocatedBytesPerStep(){
+        long n = measuredSteps.sum();
+        return (n == 0) ? 0 : (double) allocated.sum() / n;
+    }
+
+    @Override
+    public long getConflicts(){
+        return conflicts.sum();
+    }
+
+    @Override
+    public double getMeanLogNormalizer(){
+        long n = getSteps() - getConflicts();
+        return (n <= 0) ? 0 : sumLogNormalizer.sum() / n;
+    }
+
+    @Override
+    public double getMinNormalizer(){
+        double min = minNormalizer.get();
+        return Double.isInfinite(min) ? 0 : min;
+    }
+
+    @Override
+    public double getLastEntropy(){
+        return lastEntropy;
+    }
+
+    @Override
+    public double getMeanEntropy(){
+        long n = sampledSteps.sum();
+        return (n == 0) ? 0 : sumEntropy.sum() / n;
+    }
+
+    @Override
+    public double getLastPeakMass(){
+        return lastPeakMass;
+    }
+
+    @Override
+    public double getMeanPeakMass(){
+        long n = sampledSteps.sum();
+        return (n == 0) ? 0 : sumPeakMass.sum() / n;
+    }
+
+    /**
+     * reset
+     * start the step metrics over, e.g. after a warm-up; the model build metrics are kept
+     */
+    @Override
+    public void reset(){
+        latency.reset();
+        allocated.reset();
+        measuredSteps.reset();
+        conflicts.reset();
+        sumLogNormalizer.reset();
+        minNormalizer.reset();
+        sampledSteps.reset();
+        sumEntropy.reset();
+        sumPeakMass.reset();
+        lastEntropy = 0;
+        lastPeakMass = 0;
+    }
+
+    public String toString(){
+        return String.format(Locale.ROOT,
+                "%d models built (last %.1f ms); steps: %s; %.0f bytes allocated per step; %d conflicts, "
+                        + "mean log normalizer %.4f (min normalizer %.3g); entropy mean %.3f last %.3f; "
+                        + "peak mass mean %.3f last %.3f",
+                getModelsBuilt(), getLastModelBuildMillis(), latency, getAllocatedBytesPerStep(), getConflicts(),
+                getMeanLogNormalizer(), getMinNormalizer(), getMeanEntropy(), getLastEntropy(),
+                getMeanPeakMass(), getLastPeakMass());
+    }
+}
@@ -0,0 +1,41 @@
+package ProbReasoning;
+
+/**
+ * InferenceStatsMBean
+ * management interface of InferenceStats, as seen in JConsole or any JMX client. Durations are
+ * in microseconds, except for model builds which are in milliseconds
+ */
+public interface InferenceStatsMBean {
+
+    long getModelsBuilt();
+
+    double getLastModelBuildMillis();
+
+    long getSteps();
+
+    double getStepMeanMicros();
+
+    double getStepP50Micros();
+
+    double getStepP99Micros();
+
+    double getStepMaxMicros();
+
+    double getAllocatedBytesPerStep();
+
+    long getConflicts();
+
+    double getMeanLogNormalizer();
+
+    double getMinNormalizer();
+
+    double getLastEntropy();
+
+    double getMeanEntropy();
+
+    double getLastPeakMass();
+
+    double getMeanPeakMass();
+
+    void reset();
+}
@@ -0,0 +1,116 @@
+package ProbReasoning;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * LatencyHistogram
+ * lock-free histogram of durations in nanoseconds with log-linear buckets: every power of two is
+ * split into 16 buckets, so a percentile is off by at most 1/16 of its value whatever the range.
+ * Recording is one atomic increment and a few adders; any number of threads can record while
+ * another reads.
+ */
+public class LatencyHistogram {
+
+    private final static int SUB_BITS = 4;
+    private final static int SUB_BUCKETS = 1 << SUB_BITS;
+    private final static int NUM_BUCKETS = (64 - SUB_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * record
+     * @param nanos duration, negative values count as zero
+     */
+    public void record(long nanos){
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(bucket(value));
+        count.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    /**
+     * bucket
+     * values below SUB_BUCKETS get a bucket each, above it 16 buckets per power of two
+     */
+    private static int bucket(long value){
+        if(value < SUB_BUCKETS)
+            return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * upperBound
+     * @return largest value that falls in a bucket
+     */
+    private static long upperBound(int bucket){
+        if(bucket < SUB_BUCKETS)
+            return bucket;
+        int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        long sub = bucket % SUB_BUCKETS;
+        long low = (1L << exponent) | (sub << (exponent - SUB_BITS));
+        return low + (1L << (exponent - SUB_BITS)) - 1;
+    }
+
+    public long getCount(){
+        return count.sum();
+    }
+
+    public long getMax(){
+        return max.get();
+    }
+
+    public double getMean(){
+        long n = count.sum();
+        return (n == 0) ? 0 : (double) sum.sum() / n;
+    }
+
+    /**
+     * percentile
+     * @param p fraction between 0 and 1, e.g. 0.99
+     * @return upper bound of the bucket holding the value at that rank, 0 if nothing was recorded
+     */
+    public long percentile(double p){
+        long n = 0;
+        long[] snapshot = new long[NUM_BUCKETS];
+        for(int b = 0; b < NUM_BUCKETS; b++){
+            snapshot[b] = counts.get(b);
+            n += snapshot[b];
+        }
+        if(n == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(p * n));
+        long seen = 0;
+        for(int b = 0; b < NUM_BUCKETS; b++){
+            seen += snapshot[b];
+            if(seen >= rank)
+                return Math.min(upperBound(b), getMax());
+        }
+        return getMax();
+    }
+
+    /**
+     * reset
+     * forget every recorded value; values recorded during the reset may be partly kept
+     */
+    public void reset(){
+        for(int b = 0; b < NUM_BUCKETS; b++)
+            counts.set(b, 0);
+        count.reset();
+        sum.reset();
+        max.reset();
+    }
+
+    public String toString(){
+        return String.format(Locale.ROOT, "%d samples, mean %.1f us, p50 %.1f us, p99 %.1f us, max %.1f us",
+                getCount(), getMean() / 1e3, percentile(0.50) / 1e3, percentile(0.99) / 1e3, getMax() / 1e3);
+    }
+}
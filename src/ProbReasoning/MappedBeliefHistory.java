@@ -0,0 +1,199 @@
+package ProbReasoning;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * MappedBeliefHistory
+ * belief history stored in a memory-mapped file, so the rows live in the page cache instead of
+ * the heap and are written back by the operating system. The file is a 16 byte header (magic,
+ * version, numSteps, numStates as little-endian ints) followed by the rows of little-endian
+ * doubles, one row per time step. It is mapped in windows of whole rows of at most 1 GB.
+ *
+ * A history written by one run can be reopened with open for offline analysis. Reads from
+ * several threads are safe; writes to the same row are not.
+ *
+ * Usage: java ProbReasoning.MappedBeliefHistory history.bh   (most likely state at every step)
+ */
+public class MappedBeliefHistory implements BeliefHistory {
+
+    public final static int MAGIC = 0x54534842; // "BHST" in little-endian order
+    public final static int VERSION = 1;
+
+    private final static int HEADER_BYTES = 16;
+    private final static long WINDOW = 1L << 30;
+
+    private final Path path;
+    private final FileChannel channel;
+    private final FileChannel.MapMode mode;
+    private final int numSteps, numStates;
+    private final int rowsPerWindow;
+
+    // window w holds the rows w*rowsPerWindow .. (w+1)*rowsPerWindow-1
+    private final MappedByteBuffer[] windows;
+    private final DoubleBuffer[] views;
+
+    private MappedBeliefHistory(Path path, FileChannel channel, FileChannel.MapMode mode, int numSteps, int numStates)
+            throws IOException {
+        if(8L*numStates > WINDOW)
+            throw new IllegalArgumentException("A row of " + numStates + " states does not fit in a window");
+        this.path = path;
+        this.channel = channel;
+        this.mode = mode;
+        this.numSteps = numSteps;
+        this.numStates = numStates;
+        rowsPerWindow = (numStates == 0) ? Math.max(1, numSteps) : (int) Math.min(Math.max(1, numSteps), WINDOW / (8L*numStates));
+        int numWindows = (numSteps + rowsPerWindow - 1) / rowsPerWindow;
+        windows = new MappedByteBuffer[numWindows];
+        views = new DoubleBuffer[numWindows];
+
+        // mapping only reserves address space, the pages are read or written on first use
+        for(int w = 0; w < numWindows; w++){
+            int rows = Math.min(rowsPerWindow, numSteps - w*rowsPerWindow);
+            windows[w] = channel.map(mode, HEADER_BYTES + 8L*numStates*w*rowsPerWindow, 8L*numStates*rows);
+            windows[w].order(ByteOrder.LITTLE_ENDIAN);
+            views[w] = windows[w].asDoubleBuffer();
+        }
+    }
+
+    /**
+     * create
+     * create a new history file, replacing it if it exists. Every entry starts at zero
+     * @param path
+     * @param numSteps
+     * @param numStates
+     * @return the history, open for reading and writing
+     */
+    public static MappedBeliefHistory create(Path path, int numSteps, int numStates) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try{
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putInt(numSteps).putInt(numStates).flip();
+            while(header.hasRemaining())
+                channel.write(header);
+            // grow the file to its full size, the new part reads as zeros
+            long size = HEADER_BYTES + 8L*numSteps*numStates;
+            if(size > HEADER_BYTES)
+                channel.write(ByteBuffer.allocate(1), size - 1);
+            return new MappedBeliefHistory(path, channel, FileChannel.MapMode.READ_WRITE, numSteps, numStates);
+        }catch(IOException | RuntimeException e){
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * open
+     * open a history file written earlier
+     * @param path
+     * @param writable true to allow write
+     * @return the history
+     */
+    public static MappedBeliefHistory open(Path path, boolean writable) throws IOException {
+        FileChannel channel = writable
+                ? FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)
+                : FileChannel.open(path, StandardOpenOption.READ);
+        try{
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            while(header.hasRemaining()){
+                if(channel.read(header, header.position()) < 0)
+                    break;
+            }
+            header.flip();
+            if(header.remaining() < HEADER_BYTES || header.getInt() != MAGIC)
+                throw new IOException(path + ": not a belief history file");
+            int version = header.getInt();
+            if(version != VERSION)
+                throw new IOException(path + ": unsupported belief history version " + version);
+            int numSteps = header.getInt(), numStates = header.getInt();
+            long expected = HEADER_BYTES + 8L*numSteps*numStates;
+            if(numSteps < 0 || numStates < 0 || channel.size() != expected)
+                throw new IOException(path + ": expected " + expected + " bytes, found " + channel.size());
+            return new MappedBeliefHistory(path, channel,
+                    writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY, numSteps, numStates);
+        }catch(IOException | RuntimeException e){
+            channel.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public int getNumSteps(){
+        return numSteps;
+    }
+
+    @Override
+    public int getNumStates(){
+        return numStates;
+    }
+
+    public Path getPath(){
+        return path;
+    }
+
+    @Override
+    public double get(int t, int stateNum){
+        return views[t / rowsPerWindow].get((t % rowsPerWindow)*numStates + stateNum);
+    }
+
+    @Override
+    public double[] read(int t, double[] dest){
+        views[t / rowsPerWindow].get((t % rowsPerWindow)*numStates, dest, 0, numStates);
+        return dest;
+    }
+
+    @Override
+    public void write(int t, double[] src){
+        views[t / rowsPerWindow].put((t % rowsPerWindow)*numStates, src, 0, numStates);
+    }
+
+    /**
+     * force
+     * write the mapped rows back to the file now instead of when the operating system chooses
+     */
+    public void force(){
+        for(MappedByteBuffer window: windows){
+            if(mode == FileChannel.MapMode.READ_WRITE)
+                window.force();
+        }
+    }
+
+    @Override
+    public void close(){
+        force();
+        try{
+            channel.close();
+        }catch(IOException e){
+            throw new UncheckedIOException(path + ": cannot close", e);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if(args.length != 1){
+            System.out.println("Usage: java ProbReasoning.MappedBeliefHistory history.bh");
+            return;
+        }
+        try(MappedBeliefHistory history = open(Paths.get(args[0]), false)){
+            System.out.println(history.getNumSteps() + " steps, " + history.getNumStates() + " states");
+            double[] row = new double[history.getNumStates()];
+            for(int t = 0; t < history.getNumSteps(); t++){
+                history.read(t, row);
+                int best = 0;
+                for(int i = 1; i < row.length; i++){
+                    if(row[i] > row[best])
+                        best = i;
+                }
+                System.out.println("t = " + t + ": state " + best + " (p = " + row[best] + ")");
+            }
+        }
+    }
+}
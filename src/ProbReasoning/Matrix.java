@@ -53,13 +53,13 @@ public class Matrix {
     }
 
     public String toString() {
-        String s = "";
+        StringBuilder s = new StringBuilder();
         for (int r = 0; r < numRows; r++) {
             for (int c = 0; c < numColumns; c++) {
-                s += (data[r][c]+" ");
+                s.append(data[r][c]).append(' ');
             }
-            s += "\n";
+            s.append('\n');
         }
-        return s;
+        return s.toString();
     }
 }
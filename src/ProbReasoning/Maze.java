@@ -11,16 +11,16 @@
 package ProbReasoning;
 
 import java.io.IOException;
-import java.nio.charset.Charset;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 public class Maze {
-	final static Charset ENCODING = StandardCharsets.UTF_8;
-
 	// A few useful constants to describe actions
 	public static int[] NORTH = {-1, 0};
 	public static int[] EAST = {0, 1};
@@ -30,59 +30,175 @@ public class Maze {
 	
 	public int width, height, numStates;
 
-	private int[][] states; // mapping from a position coordinate to a state number
-	private char[][] grid;
+	// one byte per cell; the state numbers are not stored per cell but counted from prefix sums:
+	// rowStart[r] floor tiles come before row r, floor[r] has one bit per floor tile of row r and
+	// blockStart[r][b] floor tiles of row r come before its b-th block of 64 cells
+	private byte[][] grid;
+	private int[] rowStart;
+	private long[][] floor;
+	private int[][] blockStart;
 
-	public static Maze readFromFile(String filename) {
-		Maze m = new Maze();
+	// the file is mapped in windows of at most this many bytes
+	private final static long MAP_WINDOW = 1L << 30;
 
+	public static Maze readFromFile(String filename) {
 		try {
-			List<String> lines = readFile(filename);
-			m.height = lines.size();
-
-			int r = 0;
-			m.grid = new char[m.height][];
-			m.states = new int[m.height][];
-			int stateNum = 0;
-
-			for (String line : lines) {
-				m.width = line.length();
-				m.grid[r] = new char[m.width];
-				m.states[r] = new int[m.width];
-
-				for (int c = 0; c < line.length(); c++) {
-					m.grid[r][c] = line.charAt(c);
-					// modification to include wall
-					if(m.grid[r][c] == '#') {
-						m.states[r][c] = -1;
-					}else{
-						m.states[r][c] = stateNum;
-						stateNum++;
+			return load(Paths.get(filename));
+		} catch (IOException E) {
+			E.printStackTrace();
+			return null;
+		}
+	}
+
+	// memory-map a .maz file and read it one line at a time, only the cells end up on the heap
+	public static Maze load(Path path) throws IOException {
+		List<byte[]> rows = new ArrayList<>();
+		byte[] line = new byte[256];
+		int length = 0, width = -1;
+		boolean blank = false; // an empty line was seen, only allowed at the end of the file
+
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			long size = channel.size();
+			for (long offset = 0; offset < size; offset += MAP_WINDOW) {
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset,
+						Math.min(MAP_WINDOW, size - offset));
+				while (buffer.hasRemaining()) {
+					byte b = buffer.get();
+					if (b == '\n') {
+						if (length == 0) {
+							blank = true;
+						} else if (blank) {
+							throw new IOException(path + ": empty line before row " + (rows.size() + 1));
+						} else {
+							width = addRow(rows, line, length, width, path);
+						}
+						length = 0;
+					} else if (b != '\r') {
+						if (length == line.length) {
+							line = Arrays.copyOf(line, 2 * length);
+						}
+						line[length++] = b;
 					}
 				}
-				r++;
-				m.numStates = stateNum; // numStates give the total number of states
-				// System.out.println(line.length());
 			}
+		}
+		if (length > 0) {
+			if (blank) {
+				throw new IOException(path + ": empty line before row " + (rows.size() + 1));
+			}
+			addRow(rows, line, length, width, path);
+		}
+		return fromRows(rows.toArray(new byte[0][]));
+	}
 
-			return m;
-		} catch (IOException E) {
-			E.printStackTrace();
-			return null;
+	// helper for load: append a line to the rows, checking that the maze stays rectangular
+	private static int addRow(List<byte[]> rows, byte[] line, int length, int width, Path path)
+			throws IOException {
+		if (width != -1 && length != width) {
+			throw new IOException(path + ": row " + (rows.size() + 1) + " has " + length
+					+ " cells, expected " + width);
 		}
+		rows.add(Arrays.copyOf(line, length));
+		return length;
 	}
 
-	private static List<String> readFile(String fileName) throws IOException {
-		Path path = Paths.get(fileName);
-		return Files.readAllLines(path, ENCODING);
+	// build a maze in memory, one char array per row
+	public static Maze fromGrid(char[][] grid) {
+		byte[][] rows = new byte[grid.length][];
+		for (int r = 0; r < grid.length; r++) {
+			if (grid[r].length != grid[0].length) {
+				throw new IllegalArgumentException("Row " + r + " has " + grid[r].length
+						+ " cells, expected " + grid[0].length);
+			}
+			rows[r] = new byte[grid[r].length];
+			for (int c = 0; c < grid[r].length; c++) {
+				rows[r][c] = (byte) grid[r][c];
+			}
+		}
+		return fromRows(rows);
+	}
+
+	// helper: number the floor tiles row by row, the rows must all have the same length
+	static Maze fromRows(byte[][] rows) {
+		Maze m = new Maze();
+		m.height = rows.length;
+		m.width = (rows.length == 0) ? 0 : rows[0].length;
+		m.grid = rows;
+		m.rowStart = new int[m.height + 1];
+		m.floor = new long[m.height][];
+		m.blockStart = new int[m.height][];
+
+		long stateNum = 0;
+		for (int r = 0; r < m.height; r++) {
+			m.rowStart[r] = (int) stateNum;
+			stateNum += m.numberRow(r);
+			if (stateNum > Integer.MAX_VALUE) {
+				throw new IllegalArgumentException("Maze has more than " + Integer.MAX_VALUE + " floor tiles");
+			}
+		}
+		m.rowStart[m.height] = (int) stateNum;
+		m.numStates = (int) stateNum; // numStates give the total number of states
+		return m;
+	}
+
+	// helper: build the floor bitmap and block counts of row r, returns its number of floor tiles
+	private int numberRow(int r) {
+		int numBlocks = (width + 63) >>> 6;
+		long[] bits = new long[numBlocks];
+		int[] starts = new int[numBlocks];
+		int count = 0;
+		for (int c = 0; c < width; c++) {
+			if ((c & 63) == 0) {
+				starts[c >>> 6] = count;
+			}
+			// modification to include wall
+			if (grid[r][c] != '#') {
+				bits[c >>> 6] |= 1L << (c & 63);
+				count++;
+			}
+		}
+		floor[r] = bits;
+		blockStart[r] = starts;
+		return count;
+	}
+
+	// copy of the maze with one cell replaced ('#' for a wall), sharing every other row with this
+	// maze. Only row r is renumbered, the following rows just shift by the change in floor tiles
+	public Maze withCell(int r, int c, char cell) {
+		if (r < 0 || r >= height || c < 0 || c >= width) {
+			throw new IllegalArgumentException("Position " + r + "," + c + " is outside the maze");
+		}
+		Maze m = new Maze();
+		m.height = height;
+		m.width = width;
+		m.grid = grid.clone();
+		m.grid[r] = grid[r].clone();
+		m.grid[r][c] = (byte) cell;
+		m.floor = floor.clone();
+		m.blockStart = blockStart.clone();
+		m.rowStart = rowStart.clone();
+
+		int delta = m.numberRow(r) - (rowStart[r + 1] - rowStart[r]);
+		for (int i = r + 1; i <= height; i++) {
+			m.rowStart[i] += delta;
+		}
+		m.numStates = numStates + delta;
+		return m;
 	}
 
 	public char getChar(int r, int c) {
-		return grid[r][c];
+		return (char) (grid[r][c] & 0xff);
 	}
 
+	// state number of a position, -1 for a wall: floor tiles before the row, before the block of
+	// 64 cells and before the column within the block
 	public int getStates(int r, int c) {
-		return states[r][c];
+		long bits = floor[r][c >>> 6];
+		long bit = 1L << (c & 63);
+		if ((bits & bit) == 0) {
+			return -1;
+		}
+		return rowStart[r] + blockStart[r][c >>> 6] + Long.bitCount(bits & (bit - 1));
 	}
 	
 	// is the location x, y on the map, and also a legal floor tile (not a wall)?
@@ -97,14 +213,14 @@ public class Maze {
 	
 	
 	public String toString() {
-		String s = "";
+		StringBuilder s = new StringBuilder(height * (width + 1));
 		for (int r = 0; r < height; r++) {
 			for (int c = 0; c < width; c++) {
-				s += grid[r][c];
+				s.append(getChar(r, c));
 			}
-			s += "\n";
+			s.append('\n');
 		}
-		return s;
+		return s.toString();
 	}
 
 	public static void main(String args[]) {
@@ -59,12 +59,12 @@ public class MazeDriver {
                                 System.out.print("------------");
                                 break;
                             case 1:
-                                System.out.print("| f = " + fourdp.format(p.vectors[currStep][maze.getStates(r, c)])+" ");
+                                System.out.print("| f = " + fourdp.format(p.getFiltered().get(currStep, maze.getStates(r, c)))+" ");
                                 break;
                             case 2:
-                                if(ProbabilisticReasoning.isForwardBackward && currStep != 0 && currStep != path.length-1) {
-                                    System.out.print("| fb = " + fourdp.format(p.fbvectors[currStep][maze.getStates(r, c)]) );
-                                }else if(ProbabilisticReasoning.isForwardBackward){
+                                if(p.isForwardBackward() && currStep != 0 && currStep != path.length-1) {
+                                    System.out.print("| fb = " + fourdp.format(p.getSmoothed().get(currStep, maze.getStates(r, c))) );
+                                }else if(p.isForwardBackward()){
                                     System.out.print("| fb =  NA  ");
                                 }else{
                                     System.out.print("|           ");
@@ -147,6 +147,18 @@ public class MazeDriver {
      * @return the next position
      */
     public static int[] move(int[] currentPos, int[] dir){
+        return move(maze, currentPos, dir);
+    }
+
+    /**
+     * move
+     * find the next position in a given maze
+     * @param maze
+     * @param currentPos
+     * @param dir
+     * @return the next position
+     */
+    public static int[] move(Maze maze, int[] currentPos, int[] dir){
         int[] nextPos = new int[currentPos.length];
         for(int i = 0; i < nextPos.length; i++){
             nextPos[i] = currentPos[i] + dir[i];
@@ -167,8 +179,18 @@ public class MazeDriver {
      * @return
      */
     public static char findRandColor(char actualColor){
+        return findRandColor(actualColor, Math.random());
+    }
 
-        double rand = Math.random();
+    /**
+     * findRandColor
+     * simulate the detection of color with a given uniform random number, so that the caller can
+     * choose the random number generator (e.g. a seeded SplittableRandom)
+     * @param actualColor
+     * @param rand uniform random number in [0, 1)
+     * @return the color detected by the sensor
+     */
+    public static char findRandColor(char actualColor, double rand){
 
         // construct the otherColors array
         char[] otherColors;
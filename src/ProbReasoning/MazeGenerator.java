@@ -0,0 +1,312 @@
+package ProbReasoning;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.SplittableRandom;
+import java.util.stream.IntStream;
+
+/**
+ * MazeGenerator
+ * synthetic mazes and robot trajectories for testing at scale. A maze has any size, a given
+ * fraction of walls and a given distribution of floor colors; it is built in memory and can be
+ * written as a .maz file. A trajectory is a random walk of the robot through the maze with the
+ * noisy readings of its sensor, using move and findRandColor of MazeDriver.
+ *
+ * Everything is driven by a seed: the rows of a maze and the robots of a batch each get their own
+ * SplittableRandom, split off in a fixed order before the work is spread over threads, so the
+ * result is the same whatever the number of threads.
+ */
+public class MazeGenerator {
+
+    private final static int[][] DIRECTIONS = {Maze.NORTH, Maze.EAST, Maze.SOUTH, Maze.WEST};
+
+    /**
+     * Trajectory
+     * positions of the robot at every time step and the colors its sensor reported. Position 0 is
+     * the start and, as in MazeDriver, sensorData[0] is not used by the filters
+     */
+    public static class Trajectory {
+        public final int[][] path;
+        public final char[] sensorData;
+
+        public Trajectory(int[][] path, char[] sensorData){
+            this.path = path;
+            this.sensorData = sensorData;
+        }
+
+        public int length(){
+            return path.length;
+        }
+    }
+
+    /**
+     * generate
+     * build a maze with colors drawn uniformly
+     * @param height
+     * @param width
+     * @param wallDensity probability of a tile being a wall
+     * @param seed
+     * @return the maze
+     */
+    public static Maze generate(int height, int width, double wallDensity, long seed){
+        return generate(height, width, wallDensity, new double[]{1, 1, 1, 1}, seed);
+    }
+
+    /**
+     * generate
+     * build a maze, the rows are filled in parallel
+     * @param height
+     * @param width
+     * @param wallDensity probability of a tile being a wall
+     * @param colorWeights relative frequency of r, g, b and y on floor tiles
+     * @param seed
+     * @return the maze
+     */
+    public static Maze generate(int height, int width, double wallDensity, double[] colorWeights, long seed){
+        if(height < 1 || width < 1)
+            throw new IllegalArgumentException("Maze must have at least one row and one column");
+        if(wallDensity < 0 || wallDensity >= 1)
+            throw new IllegalArgumentException("Wall density must be in [0, 1)");
+        double[] cumulative = cumulative(colorWeights);
+
+        SplittableRandom[] rowRandom = split(new SplittableRandom(seed), height);
+        char[][] grid = new char[height][width];
+        IntStream.range(0, height).parallel().forEach(r -> {
+            SplittableRandom random = rowRandom[r];
+            char[] line = grid[r];
+            for(int c = 0; c < width; c++){
+                if(random.nextDouble() < wallDensity){
+                    line[c] = '#';
+                }else{
+                    double u = random.nextDouble();
+                    int color = 0;
+                    while(color < SensorModel.NUM_COLORS - 1 && u >= cumulative[color])
+                        color++;
+                    line[c] = SensorModel.COLORS[color];
+                }
+            }
+        });
+        return Maze.fromGrid(grid);
+    }
+
+    /**
+     * write
+     * write a maze in the .maz format read by Maze.readFromFile
+     * @param maze
+     * @param path
+     */
+    public static void write(Maze maze, Path path) throws IOException {
+        try(BufferedWriter writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8)){
+            char[] line = new char[maze.width];
+            for(int r = 0; r < maze.height; r++){
+                for(int c = 0; c < maze.width; c++)
+                    line[c] = maze.getChar(r,c);
+                writer.write(line);
+                writer.newLine();
+            }
+        }
+    }
+
+    /**
+     * simulate
+     * random walk from a random floor tile
+     * @param maze
+     * @param numSteps number of moves
+     * @param seed
+     * @return the trajectory, of numSteps+1 time steps
+     */
+    public static Trajectory simulate(Maze maze, int numSteps, long seed){
+        SplittableRandom random = new SplittableRandom(seed);
+        return simulate(maze, randomPosition(maze, random), numSteps, random);
+    }
+
+    /**
+     * simulate
+     * random walk from a given position
+     * @param maze
+     * @param startPos row and column number of the start
+     * @param numSteps number of moves
+     * @param seed
+     * @return the trajectory, of numSteps+1 time steps
+     */
+    public static Trajectory simulate(Maze maze, int[] startPos, int numSteps, long seed){
+        return simulate(maze, startPos, numSteps, new SplittableRandom(seed));
+    }
+
+    /**
+     * simulateMany
+     * random walks of several robots from random floor tiles, simulated in parallel
+     * @param maze
+     * @param numRobots
+     * @param numSteps number of moves of every robot
+     * @param seed
+     * @return one trajectory per robot
+     */
+    public static Trajectory[] simulateMany(Maze maze, int numRobots, int numSteps, long seed){
+        SplittableRandom[] robotRandom = split(new SplittableRandom(seed), numRobots);
+        Trajectory[] trajectories = new Trajectory[numRobots];
+        IntStream.range(0, numRobots).parallel().forEach(i -> {
+            SplittableRandom random = robotRandom[i];
+            trajectories[i] = simulate(maze, randomPosition(maze, random), numSteps, random);
+        });
+        return trajectories;
+    }
+
+    /**
+     * simulateMany
+     * random walks of several robots whose motion and sensor follow given parameters instead of
+     * those of MazeDriver, e.g. to check that BaumWelch recovers them
+     * @param maze
+     * @param parameters motion of the robots and confusion matrix of their sensors
+     * @param numRobots
+     * @param numSteps number of moves of every robot
+     * @param seed
+     * @return one trajectory per robot
+     */
+    public static Trajectory[] simulateMany(Maze maze, ModelParameters parameters, int numRobots, int numSteps, long seed){
+        SplittableRandom[] robotRandom = split(new SplittableRandom(seed), numRobots);
+        Trajectory[] trajectories = new Trajectory[numRobots];
+        IntStream.range(0, numRobots).parallel().forEach(i -> {
+            SplittableRandom random = robotRandom[i];
+            trajectories[i] = simulate(maze, parameters, randomPosition(maze, random), numSteps, random);
+        });
+        return trajectories;
+    }
+
+    /**
+     * simulate
+     * helper function: the robot stays or tries a direction with the probabilities of parameters
+     * and stays put when it hits a wall, the sensor reports a color drawn from the column of the
+     * emission table of the tile it ends on
+     */
+    private static Trajectory simulate(Maze maze, ModelParameters parameters, int[] startPos, int numSteps,
+                                       SplittableRandom random){
+        if(!maze.isLegal(startPos[0], startPos[1]))
+            throw new IllegalArgumentException("Start position is not a floor tile");
+        int[][] path = new int[numSteps+1][];
+        char[] sensorData = new char[numSteps+1];
+        path[0] = startPos.clone();
+        sensorData[0] = sample(maze, parameters, path[0], random);
+        for(int t = 1; t <= numSteps; t++){
+            double u = random.nextDouble();
+            if(u < parameters.getStay()){
+                path[t] = path[t-1].clone();
+            }else{
+                u -= parameters.getStay();
+                int d = 0;
+                while(d < ModelParameters.NUM_DIRECTIONS - 1 && u >= parameters.getMove(d)){
+                    u -= parameters.getMove(d);
+                    d++;
+                }
+                path[t] = MazeDriver.move(maze, path[t-1], DIRECTIONS[d]);
+            }
+            sensorData[t] = sample(maze, parameters, path[t], random);
+        }
+        return new Trajectory(path, sensorData);
+    }
+
+    /**
+     * sample
+     * helper function: reading of the sensor on a tile, drawn from the emission table
+     */
+    private static char sample(Maze maze, ModelParameters parameters, int[] pos, SplittableRandom random){
+        int index = SensorModel.colorIndex(maze.getChar(pos[0], pos[1]));
+        int actual = (index == -1) ? SensorModel.UNKNOWN_COLOR : index;
+        double sum = 0;
+        for(int o = 0; o < SensorModel.NUM_COLORS; o++)
+            sum += parameters.getEmission(o, actual);
+        double u = random.nextDouble() * sum;
+        int o = 0;
+        while(o < SensorModel.NUM_COLORS - 1 && u >= parameters.getEmission(o, actual)){
+            u -= parameters.getEmission(o, actual);
+            o++;
+        }
+        return SensorModel.COLORS[o];
+    }
+
+    /**
+     * simulate
+     * helper function: the robot tries one of the 4 directions with equal probability and stays
+     * put when it hits a wall, the sensor reports the color of the tile it ends on
+     */
+    private static Trajectory simulate(Maze maze, int[] startPos, int numSteps, SplittableRandom random){
+        if(!maze.isLegal(startPos[0], startPos[1]))
+            throw new IllegalArgumentException("Start position is not a floor tile");
+        int[][] path = new int[numSteps+1][];
+        char[] sensorData = new char[numSteps+1];
+        path[0] = startPos.clone();
+        sensorData[0] = MazeDriver.findRandColor(maze.getChar(startPos[0], startPos[1]), random.nextDouble());
+        for(int t = 1; t <= numSteps; t++){
+            path[t] = MazeDriver.move(maze, path[t-1], DIRECTIONS[random.nextInt(DIRECTIONS.length)]);
+            sensorData[t] = MazeDriver.findRandColor(maze.getChar(path[t][0], path[t][1]), random.nextDouble());
+        }
+        return new Trajectory(path, sensorData);
+    }
+
+    /**
+     * randomPosition
+     * @param maze
+     * @param random
+     * @return row and column number of a floor tile drawn uniformly
+     */
+    private static int[] randomPosition(Maze maze, SplittableRandom random){
+        if(maze.numStates == 0)
+            throw new IllegalArgumentException("Maze has no floor tile");
+        // rejection sampling, a few tries on average unless the maze is nearly all walls
+        while(true){
+            int r = random.nextInt(maze.height);
+            int c = random.nextInt(maze.width);
+            if(maze.isLegal(r,c))
+                return new int[]{r, c};
+        }
+    }
+
+    /**
+     * split
+     * helper function: split count generators off random, in order
+     */
+    private static SplittableRandom[] split(SplittableRandom random, int count){
+        SplittableRandom[] result = new SplittableRandom[count];
+        for(int i = 0; i < count; i++)
+            result[i] = random.split();
+        return result;
+    }
+
+    private static double[] cumulative(double[] weights){
+        if(weights.length != SensorModel.NUM_COLORS)
+            throw new IllegalArgumentException("Need one weight per color");
+        double[] cumulative = new double[weights.length];
+        double sum = 0;
+        for(int i = 0; i < weights.length; i++){
+            if(!(weights[i] >= 0))
+                throw new IllegalArgumentException("Color weights must be non-negative");
+            sum += weights[i];
+            cumulative[i] = sum;
+        }
+        if(!(sum > 0))
+            throw new IllegalArgumentException("Color weights must not all be zero");
+        for(int i = 0; i < weights.length; i++)
+            cumulative[i] /= sum;
+        return cumulative;
+    }
+
+    /**
+     * main
+     * Usage: java ProbReasoning.MazeGenerator height width wallDensity seed output.maz
+     */
+    public static void main(String[] args) throws IOException {
+        if(args.length != 5){
+            System.out.println("Usage: java ProbReasoning.MazeGenerator height width wallDensity seed output.maz");
+            return;
+        }
+        Maze maze = generate(Integer.parseInt(args[0]), Integer.parseInt(args[1]),
+                Double.parseDouble(args[2]), Long.parseLong(args[3]));
+        write(maze, Paths.get(args[4]));
+        System.out.println("Wrote " + maze.height + "x" + maze.width + " maze with " + maze.numStates
+                + " states to " + args[4]);
+    }
+}
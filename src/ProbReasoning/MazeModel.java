@@ -0,0 +1,524 @@
+package ProbReasoning;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * MazeModel
+ * hidden markov model of the blind robot in a maze: the sparse transition model and the sensor
+ * model, built once from a Maze. The model is immutable after construction and every kernel only
+ * reads it and writes into caller supplied buffers, so a single instance can be shared by any
+ * number of filters running on any number of threads without synchronization. The Maze it was
+ * built from must not be modified afterwards.
+ */
+public class MazeModel implements StepKernel {
+
+    // directions of the entries of a transition row in increasing state order, -1 for staying
+    private final static int[] ROW_ORDER = {ModelParameters.NORTH, ModelParameters.WEST, -1,
+            ModelParameters.EAST, ModelParameters.SOUTH};
+
+    private final Maze maze;
+    private final int numStates;
+    private final SparseMatrix transition, transitionTranspose;
+    private final SensorModel sensor;
+    private final ModelParameters parameters;
+
+    /**
+     * Constructor for MazeModel with the default sensor accuracy and motion
+     * @param maze
+     */
+    public MazeModel(Maze maze){
+        this(maze, ModelParameters.DEFAULT);
+    }
+
+    /**
+     * Constructor for MazeModel with given sensor and motion parameters, e.g. fitted by BaumWelch
+     * @param maze
+     * @param parameters
+     */
+    public MazeModel(Maze maze, ModelParameters parameters){
+        InferenceListener listener = Metrics.listener();
+        long start = (listener == null) ? 0 : System.nanoTime();
+        this.maze = maze;
+        this.numStates = maze.numStates;
+        this.parameters = parameters;
+        this.transition = buildTransition();
+        this.transitionTranspose = transition.transpose();
+        this.sensor = new SensorModel(maze, parameters.emissionTable());
+        if(listener != null)
+            listener.modelBuilt(this, System.nanoTime() - start);
+    }
+
+    /**
+     * Constructor for MazeModel from precomputed parts, used by ModelFile
+     * @param maze
+     * @param transition transition matrix over the states of maze
+     * @param transitionTranspose its transpose
+     * @param sensor sensor model over the states of maze
+     * @param parameters the parameters the parts were built with
+     */
+    MazeModel(Maze maze, SparseMatrix transition, SparseMatrix transitionTranspose, SensorModel sensor,
+              ModelParameters parameters){
+        if(transition.getNumRows() != maze.numStates || transitionTranspose.getNumRows() != maze.numStates
+                || sensor.getNumStates() != maze.numStates)
+            throw new IllegalArgumentException("Model parts do not match the " + maze.numStates + " states of the maze");
+        this.maze = maze;
+        this.numStates = maze.numStates;
+        this.transition = transition;
+        this.transitionTranspose = transitionTranspose;
+        this.sensor = sensor;
+        this.parameters = parameters;
+    }
+
+    public Maze getMaze(){
+        return maze;
+    }
+
+    @Override
+    public int getNumStates(){
+        return numStates;
+    }
+
+    public SparseMatrix getTransition(){
+        return transition;
+    }
+
+    public SparseMatrix getTransitionTranspose(){
+        return transitionTranspose;
+    }
+
+    public SensorModel getSensor(){
+        return sensor;
+    }
+
+    public ModelParameters getParameters(){
+        return parameters;
+    }
+
+    /**
+     * uniformBelief
+     * @return a new belief vector with equal probability in every state
+     */
+    public double[] uniformBelief(){
+        double[] belief = new double[numStates];
+        Arrays.fill(belief, 1.0 / ((double) numStates));
+        return belief;
+    }
+
+    /**
+     * forwardStep
+     * fused predict, weight and normalize kernel: next = normalize(sensor*transitionTranspose*prev).
+     * Writes into the caller supplied vector and does not allocate
+     * @param prev belief at the previous time step
+     * @param observed color reported by the sensor at this time step
+     * @param next vector overwritten with the belief at this time step, must not be prev
+     * @return the normalizing constant, i.e. P(observed | readings so far). Zero if the reading is
+     * impossible under the model, in which case next holds the prediction without the reading
+     */
+    @Override
+    public double forwardStep(double[] prev, char observed, double[] next){
+        double sum = predictRange(prev, sensor.emissionRow(observed), next, 0, numStates);
+        if(!(sum > 0))
+            return conflict(prev, next);
+        scaleRange(next, 1.0 / sum, 0, numStates);
+        return sum;
+    }
+
+    /**
+     * conflict
+     * helper for the step kernels when a reading has zero probability under the model: drop the
+     * reading and keep the prediction, or restart from a uniform belief if even that vanished
+     * @param prev belief at the previous time step
+     * @param next vector overwritten with the belief at this time step
+     * @return 0, the probability of the reading
+     */
+    double conflict(double[] prev, double[] next){
+        predictRange(prev, null, next, 0, numStates);
+        normalizeOrUniform(next);
+        return 0;
+    }
+
+    /**
+     * normalizeOrUniform
+     * the zero-sum policy shared by all engines: scale a message to sum to one, or replace it with
+     * the uniform message if it vanished on readings that conflict with the model
+     * @param vect forward or backward message over the states, overwritten
+     * @return the sum before scaling, 0 if the message was replaced
+     */
+    static double normalizeOrUniform(double[] vect){
+        int n = vect.length;
+        double sum = 0;
+        for(int i = 0; i < n; i++)
+            sum += vect[i];
+        if(!(sum > 0)){
+            Arrays.fill(vect, 1.0 / n);
+            return 0;
+        }
+        scaleRange(vect, 1.0 / sum, 0, n);
+        return sum;
+    }
+
+    /**
+     * backwardStep
+     * fused backward kernel: result = transition*sensor*b. Writes into the caller supplied vector
+     * and does not allocate
+     * @param b backward vector
+     * @param observed color reported by the sensor used to weight b
+     * @param result vector overwritten with the new backward vector, must not be b
+     */
+    @Override
+    public void backwardStep(double[] b, char observed, double[] result){
+        backwardRange(b, sensor.emissionRow(observed), result, 0, numStates);
+    }
+
+    @Override
+    public MazeModel getModel(){
+        return this;
+    }
+
+    /**
+     * predictRange
+     * helper for the step kernels: predict and weight the states from..to-1 of the next belief,
+     * without normalizing
+     * @param prev belief at the previous time step
+     * @param likelihood emission row of the reading, null for a missing reading
+     * @param next vector receiving the unnormalized belief
+     * @param from first state
+     * @param to one past the last state
+     * @return sum of next[from..to-1]
+     */
+    double predictRange(double[] prev, double[] likelihood, double[] next, int from, int to){
+        int[] rowPtr = transitionTranspose.rowPtr;
+        int[] colIdx = transitionTranspose.colIdx;
+        double[] values = transitionTranspose.values;
+        byte[] stateColor = sensor.stateColors();
+
+        double sum = 0;
+        for(int j = from; j < to; j++){
+            // predict: probability of moving into j from any of its neighbours
+            double p = 0;
+            for(int k = rowPtr[j]; k < rowPtr[j+1]; k++){
+                p += values[k]*prev[colIdx[k]];
+            }
+            // weight by the likelihood of the observed color (skipped for a missing reading)
+            if(likelihood != null)
+                p *= likelihood[stateColor[j]];
+            next[j] = p;
+            sum += p;
+        }
+        return sum;
+    }
+
+    /**
+     * scaleRange
+     * helper for the step kernels: multiply vect[from..to-1] by scale
+     */
+    static void scaleRange(double[] vect, double scale, int from, int to){
+        for(int j = from; j < to; j++)
+            vect[j] *= scale;
+    }
+
+    /**
+     * backwardRange
+     * helper for the step kernels: compute the states from..to-1 of transition*sensor*b
+     * @param b backward vector
+     * @param likelihood emission row of the reading, null for a missing reading
+     * @param result vector receiving the new backward vector
+     * @param from first state
+     * @param to one past the last state
+     */
+    void backwardRange(double[] b, double[] likelihood, double[] result, int from, int to){
+        int[] rowPtr = transition.rowPtr;
+        int[] colIdx = transition.colIdx;
+        double[] values = transition.values;
+        byte[] stateColor = sensor.stateColors();
+
+        for(int i = from; i < to; i++){
+            double p = 0;
+            if(likelihood == null){
+                for(int k = rowPtr[i]; k < rowPtr[i+1]; k++)
+                    p += values[k]*b[colIdx[k]];
+            }else{
+                for(int k = rowPtr[i]; k < rowPtr[i+1]; k++)
+                    p += values[k]*likelihood[stateColor[colIdx[k]]]*b[colIdx[k]];
+            }
+            result[i] = p;
+        }
+    }
+
+    /**
+     * buildTransition
+     * function to build the transition matrix in compressed sparse row form, straight from the
+     * neighbours of every state (at most 5 non-zero entries per row)
+     * @return transition matrix
+     */
+    private SparseMatrix buildTransition(){
+        int[] rowPtr = new int[numStates+1];
+        int[] colIdx = new int[5*numStates];
+        double[] values = new double[5*numStates];
+        int nnz = 0;
+
+        for(int r = 0; r < maze.height; r++){
+            for(int c = 0; c < maze.width; c++){
+
+                int stateNum = maze.getStates(r,c);
+
+                // default zero if it is a wall
+                if(stateNum == -1)
+                    continue;
+
+                nnz += transitionRow(maze, r, c, parameters, colIdx, values, nnz);
+                rowPtr[stateNum+1] = nnz;
+            }
+        }
+        return new SparseMatrix(numStates, numStates, rowPtr,
+                Arrays.copyOf(colIdx, nnz), Arrays.copyOf(values, nnz));
+    }
+
+    /**
+     * transitionRow
+     * helper function for buildTransition: write the row of the transition matrix of a floor tile.
+     * The robot stays put when it does not try to move or tries to move into a wall
+     * @param maze
+     * @param r row number of maze position
+     * @param c column number of maze position
+     * @param parameters motion of the robot
+     * @param colIdx receives the column indices from offset on
+     * @param values receives the probabilities from offset on
+     * @param offset
+     * @return number of entries written
+     */
+    private static int transitionRow(Maze maze, int r, int c, ModelParameters parameters, int[] colIdx,
+                                     double[] values, int offset){
+        double stay = parameters.getStay();
+        for(int d = 0; d < ModelParameters.NUM_DIRECTIONS; d++){
+            int[] offsets = ModelParameters.OFFSETS[d];
+            if(!maze.isLegal(r + offsets[0], c + offsets[1]))
+                stay += parameters.getMove(d);
+        }
+
+        // north, west, the tile itself, east, south is increasing state order, so every row stays
+        // sorted. Open directions are stored even with a zero probability, so the pattern of the
+        // matrix only depends on the maze
+        int k = offset;
+        for(int d: ROW_ORDER){
+            if(d == -1){
+                colIdx[k] = maze.getStates(r,c);
+                values[k++] = stay;
+                continue;
+            }
+            int[] offsets = ModelParameters.OFFSETS[d];
+            if(maze.isLegal(r + offsets[0], c + offsets[1])){
+                colIdx[k] = maze.getStates(r + offsets[0], c + offsets[1]);
+                values[k++] = parameters.getMove(d);
+            }
+        }
+        return k - offset;
+    }
+
+    /**
+     * findNeighbours
+     * helper function for remapBelief: find all the neighbours of a position, including itself
+     * @param maze
+     * @param r row number of maze position
+     * @param c column number of maze position
+     * @return list of all neighbours (state number) of a maze position, including itself
+     */
+    private static List<Integer> findNeighbors(Maze maze, int r, int c){
+        List<Integer> result = new ArrayList<>();
+
+        // loop through all 9 possibilities
+        for(int i = r-1; i <= r+1; i++){
+            for(int j = c-1; j <= c+1; j++){
+
+                // only consider the 4 adjacent neighbour and the position itself. Check if there is a wall
+                if((i==r || j==c) && maze.isLegal(i,j))
+                    result.add(maze.getStates(i,j));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * withColor
+     * copy of the model with a floor tile repainted. The state numbers do not change, so the
+     * transition matrices are shared and existing beliefs stay valid
+     * @param r row number of maze position
+     * @param c column number of maze position
+     * @param color new color of the tile
+     * @return the updated model
+     */
+    public MazeModel withColor(int r, int c, char color){
+        if(!maze.isLegal(r,c))
+            throw new IllegalArgumentException("Position " + r + "," + c + " is not a floor tile");
+        if(color == '#')
+            throw new IllegalArgumentException("Use withWall to close a tile");
+        int stateNum = maze.getStates(r,c);
+        int index = SensorModel.colorIndex(color);
+        byte[] stateColor = sensor.stateColors().clone();
+        stateColor[stateNum] = (byte) (index == -1 ? SensorModel.UNKNOWN_COLOR : index);
+        return new MazeModel(maze.withCell(r, c, color), transition, transitionTranspose,
+                sensor.withStateColors(stateColor), parameters);
+    }
+
+    /**
+     * withWall
+     * copy of the model with a floor tile turned into a wall, e.g. a door closing. Its state is
+     * removed and the following states shift down by one; use remapBelief to carry beliefs over
+     * @param r row number of maze position
+     * @param c column number of maze position
+     * @return the updated model
+     */
+    public MazeModel withWall(int r, int c){
+        if(!maze.isLegal(r,c))
+            throw new IllegalArgumentException("Position " + r + "," + c + " is not a floor tile");
+        return patch(maze.withCell(r, c, '#'), r, c, maze.getStates(r,c), false);
+    }
+
+    /**
+     * withFloor
+     * copy of the model with a wall turned into a floor tile, e.g. a door opening. A state is
+     * inserted for it and the following states shift up by one; use remapBelief to carry beliefs
+     * over
+     * @param r row number of maze position
+     * @param c column number of maze position
+     * @param color color of the new tile
+     * @return the updated model
+     */
+    public MazeModel withFloor(int r, int c, char color){
+        if(r < 0 || r >= maze.height || c < 0 || c >= maze.width || maze.isLegal(r,c))
+            throw new IllegalArgumentException("Position " + r + "," + c + " is not a wall");
+        if(color == '#')
+            throw new IllegalArgumentException("A floor tile cannot be painted '#'");
+        Maze updated = maze.withCell(r, c, color);
+        return patch(updated, r, c, updated.getStates(r,c), true);
+    }
+
+    /**
+     * patch
+     * helper function for withWall and withFloor: build the model of the updated maze from this
+     * one. Only the rows of the changed tile and of its neighbours are rebuilt, every other row is
+     * copied with its column indices shifted past the inserted or removed state
+     * @param updated maze with the tile changed
+     * @param r row number of the tile
+     * @param c column number of the tile
+     * @param changed state number of the tile, in updated if it was opened, in this model if closed
+     * @param opened true if the tile became a floor tile
+     * @return the updated model
+     */
+    private MazeModel patch(Maze updated, int r, int c, int changed, boolean opened){
+        int newStates = updated.numStates;
+
+        // rows to rebuild: the neighbours of the tile (and the tile itself when it opened)
+        int[] rebuilt = new int[5];
+        int[][] rebuiltCols = new int[5][5];
+        double[][] rebuiltValues = new double[5][5];
+        int[] rebuiltLength = new int[5];
+        int numRebuilt = 0;
+        int delta = 0; // nnz' - nnz
+        int[][] positions = {{r-1,c}, {r,c-1}, {r,c}, {r,c+1}, {r+1,c}};
+        for(int[] pos: positions){
+            int newState = stateAt(updated, pos[0], pos[1]);
+            if(newState == -1)
+                continue;
+            rebuilt[numRebuilt] = newState;
+            rebuiltLength[numRebuilt] = transitionRow(updated, pos[0], pos[1], parameters,
+                    rebuiltCols[numRebuilt], rebuiltValues[numRebuilt], 0);
+            delta += rebuiltLength[numRebuilt];
+            int oldState = stateAt(maze, pos[0], pos[1]);
+            if(oldState != -1)
+                delta -= transition.rowPtr[oldState+1] - transition.rowPtr[oldState];
+            numRebuilt++;
+        }
+        if(!opened)
+            delta -= transition.rowPtr[changed+1] - transition.rowPtr[changed];
+
+        // positions are visited in row-major order, so the rebuilt rows are sorted
+        int[] rowPtr = new int[newStates+1];
+        int[] colIdx = new int[transition.nnz() + delta];
+        double[] values = new double[colIdx.length];
+        int next = 0, nnz = 0;
+        for(int i = 0; i < newStates; i++){
+            if(next < numRebuilt && rebuilt[next] == i){
+                System.arraycopy(rebuiltCols[next], 0, colIdx, nnz, rebuiltLength[next]);
+                System.arraycopy(rebuiltValues[next], 0, values, nnz, rebuiltLength[next]);
+                nnz += rebuiltLength[next];
+                next++;
+            }else{
+                int old = (i < changed) ? i : (opened ? i-1 : i+1);
+                for(int k = transition.rowPtr[old]; k < transition.rowPtr[old+1]; k++){
+                    int j = transition.colIdx[k];
+                    colIdx[nnz] = (j < changed) ? j : (opened ? j+1 : j-1);
+                    values[nnz] = transition.values[k];
+                    nnz++;
+                }
+            }
+            rowPtr[i+1] = nnz;
+        }
+        SparseMatrix patched = new SparseMatrix(newStates, newStates, rowPtr, colIdx, values);
+
+        // same shift for the colors
+        byte[] oldColor = sensor.stateColors();
+        byte[] stateColor = new byte[newStates];
+        System.arraycopy(oldColor, 0, stateColor, 0, changed);
+        if(opened){
+            int index = SensorModel.colorIndex(updated.getChar(r,c));
+            stateColor[changed] = (byte) (index == -1 ? SensorModel.UNKNOWN_COLOR : index);
+            System.arraycopy(oldColor, changed, stateColor, changed+1, numStates - changed);
+        }else{
+            System.arraycopy(oldColor, changed+1, stateColor, changed, numStates - changed - 1);
+        }
+        return new MazeModel(updated, patched, patched.transpose(), sensor.withStateColors(stateColor), parameters);
+    }
+
+    /**
+     * stateAt
+     * @return state number of a position, -1 if it is a wall or off the map
+     */
+    private static int stateAt(Maze maze, int r, int c){
+        return maze.isLegal(r,c) ? maze.getStates(r,c) : -1;
+    }
+
+    /**
+     * remapBelief
+     * carry a belief over this model's states to the states of an updated model of the same maze
+     * size, by position. The probability of a tile that became a wall is shared among its floor
+     * neighbours, new floor tiles start with zero probability, and the result is normalized
+     * @param belief vector over the states of this model
+     * @param updated model returned by withWall, withFloor or withColor (or a chain of them)
+     * @return new vector over the states of updated
+     */
+    public double[] remapBelief(double[] belief, MazeModel updated){
+        Maze other = updated.maze;
+        if(other.height != maze.height || other.width != maze.width)
+            throw new IllegalArgumentException("Models are not of the same maze size");
+        double[] result = new double[updated.numStates];
+        double sum = 0;
+        for(int r = 0; r < maze.height; r++){
+            for(int c = 0; c < maze.width; c++){
+                int oldState = maze.getStates(r,c);
+                if(oldState == -1 || belief[oldState] == 0)
+                    continue;
+                int newState = other.getStates(r,c);
+                if(newState != -1){
+                    result[newState] += belief[oldState];
+                    sum += belief[oldState];
+                    continue;
+                }
+                // the tile closed with the robot possibly on it: push it to the open neighbours
+                List<Integer> neighbors = findNeighbors(other, r, c);
+                for(int num: neighbors){
+                    result[num] += belief[oldState] / neighbors.size();
+                    sum += belief[oldState] / neighbors.size();
+                }
+            }
+        }
+        if(sum > 0){
+            scaleRange(result, 1.0 / sum, 0, result.length);
+        }else{
+            Arrays.fill(result, 1.0 / result.length);
+        }
+        return result;
+    }
+}
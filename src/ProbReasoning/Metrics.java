@@ -0,0 +1,111 @@
+package ProbReasoning;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+
+/**
+ * Metrics
+ * registry of the InferenceListeners the hot paths report to. The instrumented code reads
+ * listener() once per operation and skips every measurement when it is null, so instrumentation
+ * costs nothing beyond that read while no listener is registered.
+ */
+public class Metrics {
+
+    private static InferenceListener[] registered = new InferenceListener[0];
+
+    // null, the only registered listener, or one forwarding to all of them
+    private static volatile InferenceListener listener;
+
+    private final static com.sun.management.ThreadMXBean THREADS = allocationBean();
+
+    private Metrics(){
+    }
+
+    /**
+     * register
+     * start reporting to a listener
+     * @param added
+     */
+    public static synchronized void register(InferenceListener added){
+        if(Arrays.asList(registered).contains(added))
+            return;
+        registered = Arrays.copyOf(registered, registered.length + 1);
+        registered[registered.length - 1] = added;
+        update();
+    }
+
+    /**
+     * unregister
+     * stop reporting to a listener
+     * @param removed
+     */
+    public static synchronized void unregister(InferenceListener removed){
+        int index = Arrays.asList(registered).indexOf(removed);
+        if(index == -1)
+            return;
+        InferenceListener[] remaining = new InferenceListener[registered.length - 1];
+        System.arraycopy(registered, 0, remaining, 0, index);
+        System.arraycopy(registered, index + 1, remaining, index, remaining.length - index);
+        registered = remaining;
+        update();
+    }
+
+    private static void update(){
+        InferenceListener[] all = registered;
+        if(all.length == 0){
+            listener = null;
+        }else if(all.length == 1){
+            listener = all[0];
+        }else{
+            listener = new InferenceListener(){
+                @Override
+                public void modelBuilt(MazeModel model, long nanos){
+                    for(InferenceListener l: all)
+                        l.modelBuilt(model, nanos);
+                }
+
+                @Override
+                public void stepCompleted(long nanos, long allocatedBytes, double normalizer, double[] belief){
+                    for(InferenceListener l: all)
+                        l.stepCompleted(nanos, allocatedBytes, normalizer, belief);
+                }
+            };
+        }
+    }
+
+    /**
+     * listener
+     * @return the listener to report to, null if instrumentation is disabled
+     */
+    public static InferenceListener listener(){
+        return listener;
+    }
+
+    /**
+     * allocatedBytes
+     * @return bytes allocated so far by the current thread, -1 if the JVM cannot measure it
+     */
+    public static long allocatedBytes(){
+        return (THREADS == null) ? -1 : THREADS.getCurrentThreadAllocatedBytes();
+    }
+
+    /**
+     * allocatedSince
+     * @param before value of allocatedBytes taken earlier on the same thread
+     * @return bytes allocated by the current thread since then, -1 if the JVM cannot measure it
+     */
+    public static long allocatedSince(long before){
+        return (before < 0) ? -1 : allocatedBytes() - before;
+    }
+
+    private static com.sun.management.ThreadMXBean allocationBean(){
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if(!(bean instanceof com.sun.management.ThreadMXBean))
+            return null;
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        if(!threads.isThreadAllocatedMemorySupported() || !threads.isThreadAllocatedMemoryEnabled())
+            return null;
+        return threads;
+    }
+}
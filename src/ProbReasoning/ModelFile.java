@@ -0,0 +1,345 @@
+package ProbReasoning;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * ModelFile
+ * binary format holding a MazeModel ready to use, so that a service can start without parsing
+ * the .maz file and rebuilding the matrices. All numbers are little-endian:
+ *
+ *   int    magic ('MZMD') and format version
+ *   int    height, width, numStates, nnz of the transition matrix
+ *   double emission table, NUM_COLORS rows of NUM_COLORS+1 columns
+ *   double stay probability, then the move probability of NORTH, EAST, SOUTH, WEST (version 2)
+ *   byte   grid, height*width cells row by row
+ *   byte   color index of every state
+ *   CSR    transition matrix then its transpose: int rowPtr[numStates+1], int colIdx[nnz],
+ *          double values[nnz]
+ *   long   CRC32 of everything above
+ *
+ * Reading maps the file, checks the checksum before anything is built and copies the arrays out
+ * in bulk. Version 1 files, without the motion, are read with the default motion. The state
+ * numbering of the maze is rebuilt from the grid in one pass (see Maze).
+ *
+ * Usage: java ProbReasoning.ModelFile input.maz output.mzm   (convert)
+ *        java ProbReasoning.ModelFile model.mzm              (check and summarize)
+ */
+public class ModelFile {
+
+    public final static int MAGIC = 0x444D5A4D; // "MZMD" in little-endian order
+    public final static int VERSION = 2;
+
+    private final static int HEADER_BYTES = 6*4;
+    private final static int TRAILER_BYTES = 8;
+
+    // the file is mapped and written in windows of at most this many bytes
+    private final static int WINDOW = 1 << 30;
+    private final static int WRITE_BUFFER = 1 << 20;
+
+    /**
+     * write
+     * write a model to a file, replacing it if it exists
+     * @param model
+     * @param path
+     */
+    public static void write(MazeModel model, Path path) throws IOException {
+        Maze maze = model.getMaze();
+        SensorModel sensor = model.getSensor();
+        SparseMatrix transition = model.getTransition();
+
+        try(Writer out = new Writer(path)){
+            out.putInt(MAGIC);
+            out.putInt(VERSION);
+            out.putInt(maze.height);
+            out.putInt(maze.width);
+            out.putInt(model.getNumStates());
+            out.putInt(transition.nnz());
+            for(int o = 0; o < SensorModel.NUM_COLORS; o++){
+                for(int a = 0; a <= SensorModel.NUM_COLORS; a++)
+                    out.putDouble(sensor.getEmission(o, a));
+            }
+            ModelParameters parameters = model.getParameters();
+            out.putDouble(parameters.getStay());
+            for(int d = 0; d < ModelParameters.NUM_DIRECTIONS; d++)
+                out.putDouble(parameters.getMove(d));
+            for(int r = 0; r < maze.height; r++){
+                for(int c = 0; c < maze.width; c++)
+                    out.putByte((byte) maze.getChar(r,c));
+            }
+            for(byte color: sensor.stateColors())
+                out.putByte(color);
+            out.putMatrix(transition);
+            out.putMatrix(model.getTransitionTranspose());
+            out.finish();
+        }
+    }
+
+    /**
+     * read
+     * load a model written by write
+     * @param path
+     * @return the model
+     * @throws IOException if the file cannot be read, is not a model file of a supported version,
+     * is truncated or fails its checksum
+     */
+    public static MazeModel read(Path path) throws IOException {
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)){
+            long size = channel.size();
+            if(size < HEADER_BYTES + TRAILER_BYTES)
+                throw new IOException(path + ": too short for a model file");
+
+            Reader in = new Reader(channel, path);
+            if(in.getInt() != MAGIC)
+                throw new IOException(path + ": not a model file");
+            int version = in.getInt();
+            if(version != 1 && version != VERSION)
+                throw new IOException(path + ": unsupported model file version " + version);
+            int height = in.getInt(), width = in.getInt(), numStates = in.getInt(), nnz = in.getInt();
+            if(height < 0 || width < 0 || numStates < 0 || nnz < 0)
+                throw new IOException(path + ": corrupt header");
+
+            int motionBytes = (version == 1) ? 0 : 8*(1 + ModelParameters.NUM_DIRECTIONS);
+            long expected = HEADER_BYTES + 8L*SensorModel.NUM_COLORS*(SensorModel.NUM_COLORS+1) + motionBytes
+                    + (long) height*width + numStates + 2*(4L*(numStates+1) + 12L*nnz) + TRAILER_BYTES;
+            if(size != expected)
+                throw new IOException(path + ": expected " + expected + " bytes, found " + size);
+            in.verify(size - TRAILER_BYTES);
+
+            double[][] emission = new double[SensorModel.NUM_COLORS][SensorModel.NUM_COLORS+1];
+            for(double[] row: emission)
+                in.getDoubles(row);
+            double stay = ModelParameters.DEFAULT.getStay();
+            double[] move = new double[ModelParameters.NUM_DIRECTIONS];
+            for(int d = 0; d < move.length; d++)
+                move[d] = ModelParameters.DEFAULT.getMove(d);
+            if(version != 1){
+                double[] motion = new double[1 + ModelParameters.NUM_DIRECTIONS];
+                in.getDoubles(motion);
+                stay = motion[0];
+                System.arraycopy(motion, 1, move, 0, move.length);
+            }
+            byte[][] grid = new byte[height][width];
+            for(byte[] row: grid)
+                in.getBytes(row);
+            byte[] stateColor = new byte[numStates];
+            in.getBytes(stateColor);
+            SparseMatrix transition = in.getMatrix(numStates, nnz);
+            SparseMatrix transitionTranspose = in.getMatrix(numStates, nnz);
+
+            Maze maze = Maze.fromRows(grid);
+            if(maze.numStates != numStates)
+                throw new IOException(path + ": grid has " + maze.numStates + " states, header says " + numStates);
+            try{
+                return new MazeModel(maze, transition, transitionTranspose, new SensorModel(stateColor, emission),
+                        new ModelParameters(emission, move, stay));
+            }catch(IllegalArgumentException e){
+                throw new IOException(path + ": " + e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Reader
+     * sequential little-endian reads over a file mapped in windows
+     */
+    private static class Reader {
+        private final FileChannel channel;
+        private final Path path;
+        private MappedByteBuffer window;
+        private long windowStart;
+
+        Reader(FileChannel channel, Path path) throws IOException {
+            this.channel = channel;
+            this.path = path;
+            map(0);
+        }
+
+        private void map(long position) throws IOException {
+            window = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                    Math.min(WINDOW, channel.size() - position));
+            window.order(ByteOrder.LITTLE_ENDIAN);
+            windowStart = position;
+        }
+
+        // make sure at least bytes bytes can be read from the window
+        private void require(int bytes) throws IOException {
+            if(window.remaining() < bytes)
+                map(windowStart + window.position());
+        }
+
+        /**
+         * verify
+         * compare the CRC32 of the first length bytes with the trailer stored right after them,
+         * leaving the read position where it was
+         */
+        void verify(long length) throws IOException {
+            long position = windowStart + window.position();
+            CRC32 crc = new CRC32();
+            for(long start = 0; start < length; start += WINDOW){
+                MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, start,
+                        Math.min(WINDOW, length - start));
+                crc.update(chunk);
+            }
+            ByteBuffer trailer = channel.map(FileChannel.MapMode.READ_ONLY, length, TRAILER_BYTES)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            if(trailer.getLong() != crc.getValue())
+                throw new IOException(path + ": checksum mismatch");
+            map(position);
+        }
+
+        int getInt() throws IOException {
+            require(4);
+            return window.getInt();
+        }
+
+        void getBytes(byte[] dest) throws IOException {
+            for(int off = 0; off < dest.length; ){
+                require(1);
+                int n = Math.min(dest.length - off, window.remaining());
+                window.get(dest, off, n);
+                off += n;
+            }
+        }
+
+        void getInts(int[] dest) throws IOException {
+            for(int off = 0; off < dest.length; ){
+                require(4);
+                int n = Math.min(dest.length - off, window.remaining() / 4);
+                window.asIntBuffer().get(dest, off, n);
+                window.position(window.position() + 4*n);
+                off += n;
+            }
+        }
+
+        void getDoubles(double[] dest) throws IOException {
+            for(int off = 0; off < dest.length; ){
+                require(8);
+                int n = Math.min(dest.length - off, window.remaining() / 8);
+                window.asDoubleBuffer().get(dest, off, n);
+                window.position(window.position() + 8*n);
+                off += n;
+            }
+        }
+
+        SparseMatrix getMatrix(int numStates, int nnz) throws IOException {
+            int[] rowPtr = new int[numStates+1];
+            int[] colIdx = new int[nnz];
+            double[] values = new double[nnz];
+            getInts(rowPtr);
+            getInts(colIdx);
+            getDoubles(values);
+            if(rowPtr[0] != 0)
+                throw new IOException(path + ": corrupt matrix rows");
+            for(int i = 0; i < numStates; i++){
+                if(rowPtr[i] > rowPtr[i+1])
+                    throw new IOException(path + ": corrupt matrix rows");
+            }
+            for(int j: colIdx){
+                if(j < 0 || j >= numStates)
+                    throw new IOException(path + ": corrupt matrix columns");
+            }
+            try{
+                return new SparseMatrix(numStates, numStates, rowPtr, colIdx, values);
+            }catch(IllegalArgumentException e){
+                throw new IOException(path + ": " + e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Writer
+     * sequential little-endian writes through a buffer, keeping the CRC32 of everything written
+     */
+    private static class Writer implements AutoCloseable {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER).order(ByteOrder.LITTLE_ENDIAN);
+        private final CRC32 crc = new CRC32();
+
+        Writer(Path path) throws IOException {
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        }
+
+        private void require(int bytes) throws IOException {
+            if(buffer.remaining() < bytes)
+                flush();
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            crc.update(buffer.duplicate());
+            while(buffer.hasRemaining())
+                channel.write(buffer);
+            buffer.clear();
+        }
+
+        void putByte(byte b) throws IOException {
+            require(1);
+            buffer.put(b);
+        }
+
+        void putInt(int i) throws IOException {
+            require(4);
+            buffer.putInt(i);
+        }
+
+        void putDouble(double d) throws IOException {
+            require(8);
+            buffer.putDouble(d);
+        }
+
+        void putMatrix(SparseMatrix matrix) throws IOException {
+            for(int p: matrix.rowPtr)
+                putInt(p);
+            for(int j: matrix.colIdx)
+                putInt(j);
+            for(double v: matrix.values)
+                putDouble(v);
+        }
+
+        // write the checksum of everything so far as the trailer
+        void finish() throws IOException {
+            flush();
+            buffer.putLong(crc.getValue());
+            buffer.flip();
+            while(buffer.hasRemaining())
+                channel.write(buffer);
+            buffer.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if(args.length == 2){
+            long start = System.nanoTime();
+            Maze maze = Maze.readFromFile(args[0]);
+            if(maze == null)
+                return;
+            MazeModel model = new MazeModel(maze);
+            long built = System.nanoTime();
+            write(model, Paths.get(args[1]));
+            System.out.printf("Parsed and built %s in %.1f ms, wrote %s%n", args[0], (built - start) / 1e6, args[1]);
+        }else if(args.length == 1){
+            long start = System.nanoTime();
+            MazeModel model = read(Paths.get(args[0]));
+            System.out.printf("Loaded %s in %.1f ms: %dx%d maze, %d states, %d transitions%n", args[0],
+                    (System.nanoTime() - start) / 1e6, model.getMaze().height, model.getMaze().width,
+                    model.getNumStates(), model.getTransition().nnz());
+        }else{
+            System.out.println("Usage: java ProbReasoning.ModelFile input.maz output.mzm");
+            System.out.println("       java ProbReasoning.ModelFile model.mzm");
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package ProbReasoning;
+
+import java.util.Locale;
+
+/**
+ * ModelParameters
+ * the numbers a MazeModel is built from: the confusion matrix of the sensor and the motion of the
+ * robot. At every step the robot stays put with probability stay, or tries to move in direction
+ * d with probability move[d] and stays put if that tile is a wall. The defaults are the constants
+ * of ProbabilisticReasoning and a robot that always tries one of the 4 directions uniformly.
+ * Instances are immutable; BaumWelch estimates them from sensor logs.
+ */
+public class ModelParameters {
+
+    // directions, in the order of move
+    public final static int NORTH = 0, EAST = 1, SOUTH = 2, WEST = 3;
+    public final static int NUM_DIRECTIONS = 4;
+    final static int[][] OFFSETS = {Maze.NORTH, Maze.EAST, Maze.SOUTH, Maze.WEST};
+
+    public final static ModelParameters DEFAULT = new ModelParameters(
+            SensorModel.symmetricEmission(ProbabilisticReasoning.rightColor, ProbabilisticReasoning.wrongColor),
+            new double[]{0.25, 0.25, 0.25, 0.25}, 0);
+
+    private final double[][] emission; // emission[observed][actual] = P(observed | actual)
+    private final double[] move;
+    private final double stay;
+
+    /**
+     * Constructor for ModelParameters
+     * @param emission emission[observed][actual] as in SensorModel, copied
+     * @param move probability of trying each direction, NORTH, EAST, SOUTH, WEST
+     * @param stay probability of not trying to move; stay and move sum to one
+     */
+    public ModelParameters(double[][] emission, double[] move, double stay){
+        if(emission.length != SensorModel.NUM_COLORS)
+            throw new IllegalArgumentException("Emission table needs " + SensorModel.NUM_COLORS + " rows");
+        this.emission = new double[SensorModel.NUM_COLORS][];
+        for(int o = 0; o < SensorModel.NUM_COLORS; o++){
+            if(emission[o].length != SensorModel.NUM_COLORS+1)
+                throw new IllegalArgumentException("Emission table needs " + (SensorModel.NUM_COLORS+1) + " columns");
+            for(double p: emission[o]){
+                if(!(p >= 0))
+                    throw new IllegalArgumentException("Emission probabilities must be non-negative");
+            }
+            this.emission[o] = emission[o].clone();
+        }
+        if(move.length != NUM_DIRECTIONS)
+            throw new IllegalArgumentException("Need one move probability per direction");
+        double sum = stay;
+        for(double p: move){
+            if(!(p >= 0))
+                throw new IllegalArgumentException("Move probabilities must be non-negative");
+            sum += p;
+        }
+        if(!(stay >= 0) || Math.abs(sum - 1) > 1e-9)
+            throw new IllegalArgumentException("Move and stay probabilities must sum to one, not " + sum);
+        this.move = move.clone();
+        this.stay = stay;
+    }
+
+    /**
+     * getEmission
+     * @param observed color index of the reading
+     * @param actual color index of the tile
+     * @return P(observed | actual)
+     */
+    public double getEmission(int observed, int actual){
+        return emission[observed][actual];
+    }
+
+    /**
+     * emissionTable
+     * @return a copy of the emission table
+     */
+    public double[][] emissionTable(){
+        double[][] copy = new double[SensorModel.NUM_COLORS][];
+        for(int o = 0; o < SensorModel.NUM_COLORS; o++)
+            copy[o] = emission[o].clone();
+        return copy;
+    }
+
+    /**
+     * getMove
+     * @param direction NORTH, EAST, SOUTH or WEST
+     * @return probability of trying to move in that direction
+     */
+    public double getMove(int direction){
+        return move[direction];
+    }
+
+    public double getStay(){
+        return stay;
+    }
+
+    /**
+     * direction
+     * @param dr row offset of a move
+     * @param dc column offset of a move
+     * @return the direction of the move, -1 if it is not one of the 4
+     */
+    static int direction(int dr, int dc){
+        for(int d = 0; d < NUM_DIRECTIONS; d++){
+            if(OFFSETS[d][0] == dr && OFFSETS[d][1] == dc)
+                return d;
+        }
+        return -1;
+    }
+
+    public String toString(){
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.ROOT, "stay %.4f, north %.4f, east %.4f, south %.4f, west %.4f%n",
+                stay, move[NORTH], move[EAST], move[SOUTH], move[WEST]));
+        sb.append("P(observed | actual), columns r g b y unknown");
+        for(int o = 0; o < SensorModel.NUM_COLORS; o++){
+            sb.append(System.lineSeparator()).append(SensorModel.COLORS[o]).append(':');
+            for(int a = 0; a <= SensorModel.NUM_COLORS; a++)
+                sb.append(String.format(Locale.ROOT, " %.4f", emission[o][a]));
+        }
+        return sb.toString();
+    }
+}
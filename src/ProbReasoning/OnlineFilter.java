@@ -0,0 +1,245 @@
+package ProbReasoning;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.Flow;
+
+/**
+ * OnlineFilter
+ * streaming forward filter that consumes sensor readings one at a time. Only the current belief
+ * is kept (plus one scratch buffer), so a robot can be tracked for any number of steps in constant
+ * memory. Readings can be pushed with update, pulled from an iterator or delivered by a
+ * java.util.concurrent.Flow publisher.
+ *
+ * The filter starts with the belief of time step 0 and every reading advances it by one time
+ * step, the same way ProbabilisticReasoning.forward treats sensorData[1..]. An instance is not
+ * thread-safe; readings of one robot have to be delivered in order by a single thread at a time.
+ */
+public class OnlineFilter implements Flow.Subscriber<Character> {
+
+    // number of readings requested from a publisher at a time
+    private final static int REQUEST_BATCH = 64;
+
+    private StepKernel kernel;
+    private double[] belief, scratch;
+    private long numUpdates;
+    private double logLikelihood;
+
+    // Flow state
+    private Flow.Subscription subscription;
+    private int pending;
+    private volatile boolean complete;
+    private volatile Throwable error;
+
+    /**
+     * Constructor for OnlineFilter starting from a uniform belief
+     * @param kernel the MazeModel itself, or a kernel running its steps such as a ParallelKernel
+     */
+    public OnlineFilter(StepKernel kernel){
+        this(kernel, kernel.getModel().uniformBelief());
+    }
+
+    /**
+     * Constructor for OnlineFilter starting from a given belief
+     * @param kernel the MazeModel itself, or a kernel running its steps such as a ParallelKernel
+     * @param start belief at time step 0, copied
+     */
+    public OnlineFilter(StepKernel kernel, double[] start){
+        if(start.length != kernel.getNumStates())
+            throw new IllegalArgumentException("Start belief has " + start.length + " states, model has "
+                    + kernel.getNumStates());
+        this.kernel = kernel;
+        this.belief = start.clone();
+        this.scratch = new double[start.length];
+    }
+
+    /**
+     * update
+     * advance the belief by one time step with a new reading. Does not allocate
+     * @param color color reported by the sensor, any other character is a missing reading
+     * @return the normalizing constant of this step, i.e. P(color | previous readings)
+     */
+    public double update(char color){
+        InferenceListener listener = Metrics.listener();
+        long start = 0, allocated = 0;
+        if(listener != null){
+            start = System.nanoTime();
+            allocated = Metrics.allocatedBytes();
+        }
+
+        double norm = kernel.forwardStep(belief, color, scratch);
+
+        // swap the buffers so that belief holds the new time step
+        double[] tmp = belief;
+        belief = scratch;
+        scratch = tmp;
+
+        numUpdates++;
+        logLikelihood += Math.log(norm);
+        if(listener != null)
+            listener.stepCompleted(System.nanoTime() - start, Metrics.allocatedSince(allocated), norm, belief);
+        return norm;
+    }
+
+    /**
+     * skip
+     * advance the belief by k time steps without readings, one step at a time. The same as k
+     * updates with SensorModel.MISSING
+     * @param k number of steps
+     */
+    public void skip(int k){
+        for(int t = 0; t < k; t++)
+            update(SensorModel.MISSING);
+    }
+
+    /**
+     * skip
+     * advance the belief by k time steps without readings, jumping over the gap with the cached
+     * transition powers of a Predictor where that is cheaper. A missing reading has probability
+     * one, so the log likelihood does not change
+     * @param k number of steps
+     * @param predictor predictor of the same model
+     */
+    public void skip(int k, Predictor predictor){
+        if(predictor.getModel() != kernel.getModel())
+            throw new IllegalArgumentException("Predictor is for another model");
+        predictor.predict(belief, k, scratch);
+        double[] tmp = belief;
+        belief = scratch;
+        scratch = tmp;
+        numUpdates += k;
+    }
+
+    /**
+     * updateAll
+     * feed every reading of an iterator to the filter
+     * @param readings
+     * @return number of readings consumed
+     */
+    public long updateAll(Iterator<Character> readings){
+        long count = 0;
+        while(readings.hasNext()){
+            update(readings.next());
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * changeModel
+     * switch to the kernel of an updated maze (see MazeModel.withWall, withFloor, withColor),
+     * carrying the current belief over to its state numbering
+     * @param updated kernel of the updated model
+     */
+    public void changeModel(StepKernel updated){
+        belief = kernel.getModel().remapBelief(belief, updated.getModel());
+        scratch = new double[belief.length];
+        kernel = updated;
+    }
+
+    /**
+     * currentBelief
+     * @return a copy of the belief after the last reading
+     */
+    public double[] currentBelief(){
+        return belief.clone();
+    }
+
+    /**
+     * currentBelief
+     * copy the belief after the last reading into a caller supplied vector
+     * @param dest vector of length numStates
+     * @return dest
+     */
+    public double[] currentBelief(double[] dest){
+        System.arraycopy(belief, 0, dest, 0, belief.length);
+        return dest;
+    }
+
+    /**
+     * getProbability
+     * @param stateNum
+     * @return probability that the robot is in stateNum after the last reading
+     */
+    public double getProbability(int stateNum){
+        return belief[stateNum];
+    }
+
+    /**
+     * getNumUpdates
+     * @return number of readings consumed so far
+     */
+    public long getNumUpdates(){
+        return numUpdates;
+    }
+
+    /**
+     * getLogLikelihood
+     * @return log probability of all the readings consumed so far
+     */
+    public double getLogLikelihood(){
+        return logLikelihood;
+    }
+
+    public MazeModel getModel(){
+        return kernel.getModel();
+    }
+
+    /**
+     * isComplete
+     * @return true once the publisher this filter is subscribed to has completed
+     */
+    public boolean isComplete(){
+        return complete;
+    }
+
+    /**
+     * getError
+     * @return the error the publisher failed with, null if there was none
+     */
+    public Throwable getError(){
+        return error;
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription){
+        if(this.subscription != null){
+            subscription.cancel();
+            return;
+        }
+        this.subscription = subscription;
+        pending = REQUEST_BATCH;
+        subscription.request(REQUEST_BATCH);
+    }
+
+    @Override
+    public void onNext(Character color){
+        update(color);
+
+        // ask for the next batch once the current one is used up
+        if(--pending == 0){
+            pending = REQUEST_BATCH;
+            subscription.request(REQUEST_BATCH);
+        }
+    }
+
+    @Override
+    public void onError(Throwable throwable){
+        error = throwable;
+        complete = true;
+    }
+
+    @Override
+    public void onComplete(){
+        complete = true;
+    }
+
+    public static void main(String[] args){
+        Maze m = Maze.readFromFile("simple.maz");
+        OnlineFilter filter = new OnlineFilter(new MazeModel(m));
+        for(char color: new char[]{'b','b','g','r'}){
+            filter.update(color);
+            System.out.println(color + ": " + Arrays.toString(filter.currentBelief()));
+        }
+    }
+}
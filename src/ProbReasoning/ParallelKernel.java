@@ -0,0 +1,199 @@
+package ProbReasoning;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * ParallelKernel
+ * step kernel that splits one time step of a single robot over a fork-join pool. States are
+ * numbered row by row, so a band of maze rows is a contiguous range of states; the bands are
+ * chosen once so that each holds at least grain states. The forward step predicts and weights the
+ * bands in parallel, reduces their sums pairwise for the normalizing constant and then scales the
+ * bands in parallel. Mazes with fewer than threshold states use the sequential kernel of the model.
+ */
+public class ParallelKernel implements StepKernel {
+
+    public final static int DEFAULT_THRESHOLD = 1 << 16;
+    public final static int DEFAULT_GRAIN = 1 << 13;
+
+    private final MazeModel model;
+    private final ForkJoinPool pool;
+    private final int threshold;
+
+    // band b covers the states bandStart[b] .. bandStart[b+1]-1
+    private final int[] bandStart;
+    private final int numBands;
+
+    /**
+     * Constructor for ParallelKernel with the default threshold and grain on the common pool
+     * @param model
+     */
+    public ParallelKernel(MazeModel model){
+        this(model, ForkJoinPool.commonPool(), DEFAULT_THRESHOLD, DEFAULT_GRAIN);
+    }
+
+    /**
+     * Constructor for ParallelKernel
+     * @param model
+     * @param pool
+     * @param threshold mazes with fewer states than this are stepped sequentially
+     * @param grain minimum number of states in a band of rows
+     */
+    public ParallelKernel(MazeModel model, ForkJoinPool pool, int threshold, int grain){
+        if(grain < 1)
+            throw new IllegalArgumentException("Grain must be positive");
+        this.model = model;
+        this.pool = pool;
+        this.threshold = threshold;
+
+        // group whole maze rows into bands of at least grain states
+        Maze maze = model.getMaze();
+        int[] starts = new int[maze.height+1];
+        int count = 0, stateNum = 0, bandSize = 0;
+        for(int r = 0; r < maze.height; r++){
+            if(bandSize >= grain){
+                starts[count++] = stateNum - bandSize;
+                bandSize = 0;
+            }
+            for(int c = 0; c < maze.width; c++){
+                if(maze.isLegal(r,c)){
+                    stateNum++;
+                    bandSize++;
+                }
+            }
+        }
+        if(bandSize > 0 || count == 0)
+            starts[count++] = stateNum - bandSize;
+        numBands = count;
+        bandStart = new int[numBands+1];
+        System.arraycopy(starts, 0, bandStart, 0, numBands);
+        bandStart[numBands] = stateNum;
+    }
+
+    @Override
+    public double forwardStep(double[] prev, char observed, double[] next){
+        if(model.getNumStates() < threshold || numBands == 1)
+            return model.forwardStep(prev, observed, next);
+
+        double[] likelihood = model.getSensor().emissionRow(observed);
+        double sum = pool.invoke(new PredictTask(prev, likelihood, next, 0, numBands));
+        if(!(sum > 0))
+            return model.conflict(prev, next);
+        pool.invoke(new ScaleTask(next, 1.0 / sum, 0, numBands));
+        return sum;
+    }
+
+    @Override
+    public void backwardStep(double[] b, char observed, double[] result){
+        if(model.getNumStates() < threshold || numBands == 1){
+            model.backwardStep(b, observed, result);
+            return;
+        }
+        double[] likelihood = model.getSensor().emissionRow(observed);
+        pool.invoke(new BackwardTask(b, likelihood, result, 0, numBands));
+    }
+
+    @Override
+    public int getNumStates(){
+        return model.getNumStates();
+    }
+
+    @Override
+    public MazeModel getModel(){
+        return model;
+    }
+
+    public int getNumBands(){
+        return numBands;
+    }
+
+    /**
+     * PredictTask
+     * predict and weight the bands lo..hi-1, returning the sum of their entries
+     */
+    private class PredictTask extends RecursiveTask<Double> {
+        private final static long serialVersionUID = 1L;
+
+        private final double[] prev, likelihood, next;
+        private final int lo, hi;
+
+        PredictTask(double[] prev, double[] likelihood, double[] next, int lo, int hi){
+            this.prev = prev;
+            this.likelihood = likelihood;
+            this.next = next;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected Double compute(){
+            if(hi - lo == 1)
+                return model.predictRange(prev, likelihood, next, bandStart[lo], bandStart[hi]);
+            int mid = (lo + hi) >>> 1;
+            PredictTask left = new PredictTask(prev, likelihood, next, lo, mid);
+            left.fork();
+            double right = new PredictTask(prev, likelihood, next, mid, hi).compute();
+            return left.join() + right;
+        }
+    }
+
+    /**
+     * ScaleTask
+     * multiply the bands lo..hi-1 by scale
+     */
+    private class ScaleTask extends RecursiveAction {
+        private final static long serialVersionUID = 1L;
+
+        private final double[] vect;
+        private final double scale;
+        private final int lo, hi;
+
+        ScaleTask(double[] vect, double scale, int lo, int hi){
+            this.vect = vect;
+            this.scale = scale;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected void compute(){
+            if(hi - lo == 1){
+                MazeModel.scaleRange(vect, scale, bandStart[lo], bandStart[hi]);
+                return;
+            }
+            int mid = (lo + hi) >>> 1;
+            invokeAll(new ScaleTask(vect, scale, lo, mid), new ScaleTask(vect, scale, mid, hi));
+        }
+    }
+
+    /**
+     * BackwardTask
+     * compute the bands lo..hi-1 of transition*sensor*b
+     */
+    private class BackwardTask extends RecursiveAction {
+        private final static long serialVersionUID = 1L;
+
+        private final double[] b, likelihood, result;
+        private final int lo, hi;
+
+        BackwardTask(double[] b, double[] likelihood, double[] result, int lo, int hi){
+            this.b = b;
+            this.likelihood = likelihood;
+            this.result = result;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected void compute(){
+            if(hi - lo == 1){
+                model.backwardRange(b, likelihood, result, bandStart[lo], bandStart[hi]);
+                return;
+            }
+            int mid = (lo + hi) >>> 1;
+            invokeAll(new BackwardTask(b, likelihood, result, lo, mid),
+                    new BackwardTask(b, likelihood, result, mid, hi));
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package ProbReasoning;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * ParticleFilter
+ * approximate forward filter for mazes too large for exact inference. The belief is a fixed
+ * number of particles, each sitting in one state. A step moves every particle by sampling its row
+ * of the transition matrix (the same motion model as MazeModel, i.e. findNeighbors with bounces),
+ * weights it by the sensor model and resamples with systematic resampling. Particles and weights
+ * are primitive arrays, so a step costs O(numParticles) whatever the size of the maze.
+ *
+ * An instance is not thread-safe. Given the same seed, the same readings give the same particles.
+ */
+public class ParticleFilter {
+
+    private final MazeModel model;
+    private final int numParticles;
+    private final SplittableRandom random;
+
+    private int[] particles, resampled;
+    private final double[] weights;
+
+    // cumulative transition probabilities, laid out like the rows of the transition matrix
+    private final double[] cumulative;
+
+    private long numUpdates;
+    private double logLikelihood;
+
+    /**
+     * Constructor for ParticleFilter starting from particles spread uniformly over the states
+     * @param model
+     * @param numParticles
+     * @param seed seed of the random number generator
+     */
+    public ParticleFilter(MazeModel model, int numParticles, long seed){
+        if(numParticles < 1)
+            throw new IllegalArgumentException("Need at least one particle");
+        this.model = model;
+        this.numParticles = numParticles;
+        this.random = new SplittableRandom(seed);
+        particles = new int[numParticles];
+        resampled = new int[numParticles];
+        weights = new double[numParticles];
+
+        SparseMatrix transition = model.getTransition();
+        cumulative = new double[transition.nnz()];
+        for(int i = 0; i < model.getNumStates(); i++){
+            double sum = 0;
+            for(int k = transition.rowPtr[i]; k < transition.rowPtr[i+1]; k++){
+                sum += transition.values[k];
+                cumulative[k] = sum;
+            }
+        }
+
+        for(int p = 0; p < numParticles; p++)
+            particles[p] = random.nextInt(model.getNumStates());
+    }
+
+    /**
+     * Constructor for ParticleFilter starting with every particle in a known state
+     * @param model
+     * @param numParticles
+     * @param seed seed of the random number generator
+     * @param startState
+     */
+    public ParticleFilter(MazeModel model, int numParticles, long seed, int startState){
+        this(model, numParticles, seed);
+        Arrays.fill(particles, startState);
+    }
+
+    /**
+     * update
+     * advance the particles by one time step with a new reading
+     * @param color color reported by the sensor, any other character is a missing reading
+     * @return estimate of the normalizing constant of this step (the mean particle weight)
+     */
+    public double update(char color){
+        SparseMatrix transition = model.getTransition();
+        int[] rowPtr = transition.rowPtr;
+        int[] colIdx = transition.colIdx;
+        SensorModel sensor = model.getSensor();
+        double[] likelihood = sensor.emissionRow(color);
+        byte[] stateColor = sensor.stateColors();
+
+        // move every particle and weight it by the reading
+        double sum = 0;
+        for(int p = 0; p < numParticles; p++){
+            int i = particles[p];
+            double u = random.nextDouble();
+            int k = rowPtr[i];
+            int last = rowPtr[i+1] - 1;
+            while(k < last && u >= cumulative[k])
+                k++;
+            int j = colIdx[k];
+            particles[p] = j;
+            double w = (likelihood == null) ? 1 : likelihood[stateColor[j]];
+            weights[p] = w;
+            sum += w;
+        }
+
+        numUpdates++;
+        double norm = sum / numParticles;
+        logLikelihood += Math.log(norm);
+
+        // a missing reading leaves all weights equal, no need to resample
+        if(likelihood == null || !(sum > 0))
+            return norm;
+
+        // systematic resampling: one random offset, numParticles evenly spaced pointers
+        double step = sum / numParticles;
+        double pointer = random.nextDouble() * step;
+        double cum = weights[0];
+        int src = 0;
+        for(int p = 0; p < numParticles; p++){
+            while(pointer > cum && src < numParticles - 1){
+                src++;
+                cum += weights[src];
+            }
+            resampled[p] = particles[src];
+            pointer += step;
+        }
+        int[] tmp = particles;
+        particles = resampled;
+        resampled = tmp;
+        return norm;
+    }
+
+    /**
+     * currentBelief
+     * @return the fraction of particles in every state after the last reading
+     */
+    public double[] currentBelief(){
+        double[] belief = new double[model.getNumStates()];
+        double share = 1.0 / numParticles;
+        for(int p = 0; p < numParticles; p++)
+            belief[particles[p]] += share;
+        return belief;
+    }
+
+    /**
+     * getParticles
+     * @return a copy of the state of every particle
+     */
+    public int[] getParticles(){
+        return particles.clone();
+    }
+
+    public int getNumParticles(){
+        return numParticles;
+    }
+
+    public long getNumUpdates(){
+        return numUpdates;
+    }
+
+    /**
+     * getLogLikelihood
+     * @return estimate of the log probability of the readings consumed so far
+     */
+    public double getLogLikelihood(){
+        return logLikelihood;
+    }
+
+    /**
+     * totalVariation
+     * helper function to compare an approximate belief with the exact one
+     * @param first
+     * @param second
+     * @return total variation distance between the two distributions
+     */
+    public static double totalVariation(double[] first, double[] second){
+        double sum = 0;
+        for(int i = 0; i < first.length; i++)
+            sum += Math.abs(first[i] - second[i]);
+        return sum / 2;
+    }
+
+    /**
+     * main
+     * report the error of the particle filter against the exact posterior on the sample mazes
+     */
+    public static void main(String[] args){
+        int numSteps = 200;
+        int[] particleCounts = {100, 1000, 10000, 100000};
+
+        for(String file: new String[]{"simple.maz", "medium.maz", "hard.maz"}){
+            Maze m = Maze.readFromFile(file);
+            MazeModel model = new MazeModel(m);
+
+            // readings of a random walk, generated from the same model
+            char[] sensorData = MazeGenerator.simulate(m, numSteps - 1, 42).sensorData;
+
+            OnlineFilter exact = new OnlineFilter(model);
+            ParticleFilter[] filters = new ParticleFilter[particleCounts.length];
+            double[] meanError = new double[particleCounts.length];
+            for(int f = 0; f < filters.length; f++)
+                filters[f] = new ParticleFilter(model, particleCounts[f], 7);
+
+            for(int t = 1; t < numSteps; t++){
+                exact.update(sensorData[t]);
+                double[] belief = exact.currentBelief();
+                for(int f = 0; f < filters.length; f++){
+                    filters[f].update(sensorData[t]);
+                    meanError[f] += totalVariation(belief, filters[f].currentBelief()) / (numSteps - 1);
+                }
+            }
+
+            System.out.println(file + " (" + m.numStates + " states, " + numSteps + " steps)");
+            for(int f = 0; f < filters.length; f++)
+                System.out.println("  " + particleCounts[f] + " particles: mean total variation = " + meanError[f]);
+        }
+    }
+}
@@ -0,0 +1,338 @@
+package ProbReasoning;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Predictor
+ * k-step prediction over a run of missing readings, i.e. the belief after k moves without any
+ * sensor weight. The powers T^(2^i) of the transition matrix are built once by squaring and
+ * cached, so a gap of k steps is crossed with at most one jump per binary digit of k.
+ *
+ * The powers of a walk on a grid fill up quickly: a row of T^m holds about 2m^2 entries, against
+ * about 5m for m single steps of a belief spread over the whole maze. The jumps are therefore
+ * only used where they pay, which is for beliefs concentrated on a few states ("where will the
+ * robot be in k steps" from a known position, or a belief that has already locked on): the
+ * products are scattered from the non-zero states only, and every jump is compared with the
+ * single steps it replaces before it is taken. Dense beliefs fall back to single steps, which is
+ * never slower than OnlineFilter.update with missing readings.
+ *
+ * The cached powers are limited to a budget of stored entries; powers beyond it are not built.
+ * An instance is thread-safe and can be shared by all the filters of one model; every thread
+ * keeps its own working vectors, so repeated predictions allocate nothing but their result.
+ */
+public class Predictor {
+
+    // default budget of stored entries over all cached powers, 12 bytes each
+    public final static long DEFAULT_MAX_NNZ = 1L << 22;
+
+    // beliefs non-zero in at least 1/DENSE_FRACTION of the states take single steps with the
+    // fused kernels of the model instead of scatters
+    private final static int DENSE_FRACTION = 4;
+
+    private final MazeModel model;
+    private final int numStates;
+    private final long maxNnz;
+    private final double stepCost; // average entries per row of the transition matrix
+
+    // forward powers of the transition matrix (rows are the "from" state), backward powers of its
+    // transpose; both are applied as scatters over the rows of the non-zero entries
+    private final Powers forwardPowers, backwardPowers;
+    private long numStored;
+
+    private final ThreadLocal<Scratch> scratch;
+
+    /**
+     * Powers
+     * powers[i] = base^(2^i), built on demand
+     */
+    private static class Powers {
+        final List<SparseMatrix> powers = new ArrayList<>();
+        boolean exhausted; // the next power did not fit in the budget
+
+        Powers(SparseMatrix base){
+            powers.add(base);
+        }
+    }
+
+    /**
+     * Scratch
+     * working vectors of apply, one set per thread. mark is all false between calls; x and y
+     * hold stale values outside the support, which apply never reads
+     */
+    private static class Scratch {
+        final double[] x, y;
+        final int[] support, next;
+        final boolean[] mark;
+
+        Scratch(int numStates){
+            x = new double[numStates];
+            y = new double[numStates];
+            support = new int[numStates];
+            next = new int[numStates];
+            mark = new boolean[numStates];
+        }
+    }
+
+    /**
+     * Constructor for Predictor with the default budget
+     * @param model
+     */
+    public Predictor(MazeModel model){
+        this(model, DEFAULT_MAX_NNZ);
+    }
+
+    /**
+     * Constructor for Predictor
+     * @param model
+     * @param maxNnz budget of stored entries over all cached powers
+     */
+    public Predictor(MazeModel model, long maxNnz){
+        this.model = model;
+        this.numStates = model.getNumStates();
+        this.maxNnz = maxNnz;
+        this.stepCost = (numStates == 0) ? 0 : (double) model.getTransition().nnz() / numStates;
+        forwardPowers = new Powers(model.getTransition());
+        backwardPowers = new Powers(model.getTransitionTranspose());
+        scratch = ThreadLocal.withInitial(() -> new Scratch(numStates));
+    }
+
+    /**
+     * predict
+     * belief after k steps without readings, the same as k calls of MazeModel.forwardStep with a
+     * missing reading
+     * @param belief belief now, not modified
+     * @param k number of steps, zero or more
+     * @param result vector overwritten with the predicted belief, may be belief
+     * @return result
+     */
+    public double[] predict(double[] belief, int k, double[] result){
+        apply(forwardPowers, belief, k, result);
+        double sum = 0;
+        for(int i = 0; i < numStates; i++)
+            sum += result[i];
+        if(sum > 0){
+            for(int i = 0; i < numStates; i++)
+                result[i] /= sum;
+        }
+        return result;
+    }
+
+    /**
+     * predictFrom
+     * where the robot will be in k steps if it is in a known state now, i.e. row stateNum of T^k
+     * @param stateNum
+     * @param k number of steps, zero or more
+     * @return probability of every state after k steps
+     */
+    public double[] predictFrom(int stateNum, int k){
+        double[] belief = new double[numStates];
+        belief[stateNum] = 1;
+        return predict(belief, k, belief);
+    }
+
+    /**
+     * backward
+     * backward vector k steps earlier across a run of missing readings, i.e. T^k b, the same as k
+     * calls of MazeModel.backwardStep with a missing reading. Not normalized
+     * @param b backward vector, not modified
+     * @param k number of steps, zero or more
+     * @param result vector overwritten with the backward vector, may be b
+     * @return result
+     */
+    public double[] backward(double[] b, int k, double[] result){
+        return apply(backwardPowers, b, k, result);
+    }
+
+    /**
+     * apply
+     * helper function for predict and backward: x*base^k, combining cached powers and single
+     * steps of the base by the estimated cost of each
+     */
+    private double[] apply(Powers cache, double[] vect, int k, double[] result){
+        if(k < 0)
+            throw new IllegalArgumentException("Number of steps must not be negative: " + k);
+        Scratch buffers = scratch.get();
+        double[] x = buffers.x, y = buffers.y;
+        int[] support = buffers.support, next = buffers.next;
+        boolean[] mark = buffers.mark;
+        int count = 0;
+        for(int i = 0; i < numStates; i++){
+            x[i] = vect[i];
+            if(x[i] != 0)
+                support[count++] = i;
+        }
+
+        int remaining = k;
+        while(remaining > 0){
+            int i = 31 - Integer.numberOfLeadingZeros(remaining);
+            SparseMatrix power = null;
+            while(i > 0 && (power = power(cache, i)) == null)
+                i--;
+            int m = 1 << i;
+
+            boolean jump = false;
+            if(i > 0){
+                // entries touched by the jump, against m single steps from a support that grows
+                // from its current size to at most the size reached by the jump
+                long jumpCost = 0;
+                for(int s = 0; s < count; s++)
+                    jumpCost += power.rowPtr[support[s]+1] - power.rowPtr[support[s]];
+                double singleCost = m * stepCost * (count + Math.min(numStates, jumpCost)) / 2;
+                jump = jumpCost <= singleCost;
+            }
+
+            int steps = jump ? 1 : m;
+            SparseMatrix matrix = jump ? power : power(cache, 0);
+            for(int s = 0; s < steps; s++){
+                if(!jump && count >= numStates / DENSE_FRACTION){
+                    // spread belief: the fused step of the model is cheaper than the scatter
+                    if(count < numStates)
+                        spread(x, support, count, mark);
+                    if(cache == forwardPowers)
+                        model.forwardStep(x, SensorModel.MISSING, y);
+                    else
+                        model.backwardStep(x, SensorModel.MISSING, y);
+                    count = numStates;
+                }else{
+                    count = scatter(matrix, x, support, count, y, next, mark);
+                    int[] tmp = support; support = next; next = tmp;
+                }
+                double[] tmp = x; x = y; y = tmp;
+            }
+            remaining -= m;
+        }
+
+        Arrays.fill(result, 0, numStates, 0);
+        for(int s = 0; s < count; s++)
+            result[support[s]] = x[support[s]];
+        return result;
+    }
+
+    /**
+     * scatter
+     * helper function for apply: y = x*matrix over the states in support only
+     * @return number of states in the support of y, listed in ySupport
+     */
+    private static int scatter(SparseMatrix matrix, double[] x, int[] support, int count, double[] y, int[] ySupport,
+                               boolean[] mark){
+        int[] rowPtr = matrix.rowPtr;
+        int[] colIdx = matrix.colIdx;
+        double[] values = matrix.values;
+        int yCount = 0;
+        for(int s = 0; s < count; s++){
+            int r = support[s];
+            double v = x[r];
+            for(int k = rowPtr[r]; k < rowPtr[r+1]; k++){
+                int c = colIdx[k];
+                if(!mark[c]){
+                    mark[c] = true;
+                    y[c] = 0;
+                    ySupport[yCount++] = c;
+                }
+                y[c] += values[k]*v;
+            }
+        }
+        for(int s = 0; s < yCount; s++)
+            mark[ySupport[s]] = false;
+        return yCount;
+    }
+
+    /**
+     * spread
+     * helper function for apply: clear the stale entries of x outside its support and make the
+     * support all states, before x goes through a fused step that reads every entry
+     */
+    private static void spread(double[] x, int[] support, int count, boolean[] mark){
+        for(int s = 0; s < count; s++)
+            mark[support[s]] = true;
+        for(int j = 0; j < x.length; j++){
+            if(!mark[j])
+                x[j] = 0;
+            mark[j] = false;
+            support[j] = j;
+        }
+    }
+
+    /**
+     * power
+     * helper function for apply: base^(2^i), squaring the largest cached power as needed
+     * @return the power, null if it does not fit in the budget
+     */
+    private synchronized SparseMatrix power(Powers cache, int i){
+        while(cache.powers.size() <= i){
+            if(cache.exhausted)
+                return null;
+            SparseMatrix last = cache.powers.get(cache.powers.size()-1);
+            SparseMatrix squared = last.multiply(last, maxNnz - numStored);
+            if(squared == null){
+                cache.exhausted = true;
+                return null;
+            }
+            numStored += squared.nnz();
+            cache.powers.add(squared);
+        }
+        return cache.powers.get(i);
+    }
+
+    /**
+     * getNumPowers
+     * @return number of powers of the transition matrix cached for predict, T itself included
+     */
+    public synchronized int getNumPowers(){
+        return forwardPowers.powers.size();
+    }
+
+    public MazeModel getModel(){
+        return model;
+    }
+
+    /**
+     * main
+     * compare k-step predictions with k single steps, from a known position and from a spread
+     * belief
+     */
+    public static void main(String[] args){
+        Maze maze = (args.length > 0) ? Maze.readFromFile(args[0]) : MazeGenerator.generate(316, 316, 0.2, 1);
+        MazeModel model = new MazeModel(maze);
+        Predictor predictor = new Predictor(model);
+        int numStates = model.getNumStates();
+        int start = numStates / 2;
+        System.out.println(numStates + " states");
+
+        double[] spread = model.uniformBelief();
+        for(int round = 0; round < 2; round++){
+            for(int k: new int[]{8, 64, 256}){
+                // single steps with missing readings
+                double[] prev = new double[numStates], next = new double[numStates];
+                prev[start] = 1;
+                long before = System.nanoTime();
+                for(int t = 0; t < k; t++){
+                    model.forwardStep(prev, SensorModel.MISSING, next);
+                    double[] tmp = prev; prev = next; next = tmp;
+                }
+                long single = System.nanoTime() - before;
+
+                before = System.nanoTime();
+                double[] jumped = predictor.predictFrom(start, k);
+                long jumps = System.nanoTime() - before;
+
+                double error = 0;
+                for(int i = 0; i < numStates; i++)
+                    error = Math.max(error, Math.abs(prev[i] - jumped[i]));
+
+                before = System.nanoTime();
+                predictor.predict(spread, k, next);
+                long dense = System.nanoTime() - before;
+
+                if(round == 1)
+                    System.out.println(String.format(Locale.ROOT,
+                            "k = %3d: %8.2f ms single steps, %8.2f ms from a known state (max difference %.1e), %8.2f ms from a uniform belief",
+                            k, single / 1e6, jumps / 1e6, error, dense / 1e6));
+            }
+        }
+        System.out.println(predictor.getNumPowers() + " powers cached");
+    }
+}
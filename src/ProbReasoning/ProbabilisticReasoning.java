@@ -13,7 +13,7 @@ import java.util.*;
  */
 public class ProbabilisticReasoning {
 
-    // boolean flag - set true for forward-backward propagation, false for just forward propagation
+    // boolean flag - default mode, set true for forward-backward propagation, false for just forward propagation
     public final static boolean isForwardBackward  = true;
 
     // Constants for probablitiy and color data
@@ -24,51 +24,92 @@ public class ProbabilisticReasoning {
     private Maze maze;
     private char[] sensorData;
     private int numSteps;
+    private boolean forwardBackward;
 
-    // Matrices
-    private Matrix transition, transitionTranspose, sensorRed, sensorGreen, sensorBlue, sensorYellow;
+    // Model and probability vectors. vectors and fbvectors are the rows of the history stores
+    // when these are on the heap, null otherwise
+    private MazeModel model;
+    private BeliefHistory filtered, smoothed;
     public double[][] vectors;
     public double[][] fbvectors;
+    private double[] scales; // normalizing constant of every forward step, scales[0] = 1
+    private double logLikelihood;
 
     // Debugging
     private boolean debug = false;
 
     public ProbabilisticReasoning(Maze maze, char[] sensorData){
+        this(maze, sensorData, isForwardBackward);
+    }
+
+    /**
+     * Constructor for ProbabilisticReasoning choosing the propagation at runtime
+     * @param maze
+     * @param sensorData
+     * @param forwardBackward true for forward-backward propagation, false for just forward propagation
+     */
+    public ProbabilisticReasoning(Maze maze, char[] sensorData, boolean forwardBackward){
+        // preprocessing of the transition and sensor models
+        this(new MazeModel(maze), sensorData, forwardBackward);
+    }
+
+    /**
+     * Constructor for ProbabilisticReasoning on an already built model, which can be shared by
+     * any number of sequences (and threads) instead of being rebuilt for every one of them
+     * @param model
+     * @param sensorData
+     * @param forwardBackward true for forward-backward propagation, false for just forward propagation
+     */
+    public ProbabilisticReasoning(MazeModel model, char[] sensorData, boolean forwardBackward){
+        this(model, sensorData, forwardBackward, new HeapBeliefHistory(sensorData.length, model.getNumStates()),
+                forwardBackward ? new HeapBeliefHistory(sensorData.length, model.getNumStates()) : null);
+    }
+
+    /**
+     * Constructor for ProbabilisticReasoning storing the vectors in given history stores, e.g.
+     * MappedBeliefHistory to keep them off the heap
+     * @param model
+     * @param sensorData
+     * @param forwardBackward true for forward-backward propagation, false for just forward propagation
+     * @param filtered receives the forward vectors, of sensorData.length steps
+     * @param smoothed receives the forward-backward vectors, may be null for just forward propagation
+     */
+    public ProbabilisticReasoning(MazeModel model, char[] sensorData, boolean forwardBackward,
+                                  BeliefHistory filtered, BeliefHistory smoothed){
 
         // initialization
-        this.maze = maze;
+        this.model = model;
+        this.maze = model.getMaze();
         this.sensorData = sensorData;
+        this.forwardBackward = forwardBackward;
         numSteps = sensorData.length;
-        vectors = new double[numSteps][maze.numStates];
-        fbvectors = new double[numSteps][maze.numStates];
+        checkHistory(filtered);
+        if(forwardBackward)
+            checkHistory(smoothed);
+        this.filtered = filtered;
+        this.smoothed = smoothed;
+        vectors = (filtered instanceof HeapBeliefHistory) ? ((HeapBeliefHistory) filtered).rows() : null;
+        fbvectors = (smoothed instanceof HeapBeliefHistory) ? ((HeapBeliefHistory) smoothed).rows() : null;
+        scales = new double[numSteps];
 
-        // preprocessing of matrices
-        buildTransition();
-        buildSensor();
         buildStartVector();
 
         // forward backward propagation or just forward propagation of probability depending on boolean flag
-        if(isForwardBackward)
+        if(forwardBackward)
             forwardBackward();
         else
             forward();
 
-        // for debugging
+        // for debugging: a summary of every step instead of the full vectors, which are unreadable
+        // beyond a few states
         if(debug) {
-            System.out.println(transition.toString());
-            System.out.println(sensorRed.toString());
-            System.out.println(sensorBlue.toString());
-            System.out.println(sensorGreen.toString());
-            System.out.println(sensorYellow.toString());
-
-            for (int i = 0; i < numSteps; i++)
-                System.out.println(Arrays.toString(vectors[i]));
-
-            // backward propagation of probability
-            double[] b1 = backward(new double[]{1,1,1,1},numSteps-1);
-            double[] b2 = backward(b1,numSteps-2);
-            System.out.println(Arrays.toString(b1));
-            System.out.println(Arrays.toString(b2));
+            System.out.println(maze.numStates + " states, " + model.getTransition().nnz() + " transitions");
+            double[] f = new double[maze.numStates];
+            for (int t = 1; t < numSteps; t++) {
+                filtered.read(t, f);
+                System.out.println(String.format(Locale.ROOT, "t = %d: reading %c, normalizer %.4g, entropy %.3f, peak mass %.3f",
+                        t, sensorData[t], scales[t], InferenceStats.entropy(f), InferenceStats.peakMass(f)));
+            }
         }
     }
 
@@ -76,15 +117,40 @@ public class ProbabilisticReasoning {
         // perform forward propagation first
         forward();
 
-        // initialise backward vector
+        // initialise backward vector, the two buffers are swapped after every step
         double[] b = new double[maze.numStates];
+        double[] bNext = new double[maze.numStates];
         Arrays.fill(b,1);
+        double[] fScratch = new double[maze.numStates];
+        double[] fbScratch = new double[maze.numStates];
 
         // fill in forward backward vector
         for(int t = numSteps-1; t>=1; t--){
-            fbvectors[t] = pointMultiplyVect(vectors[t],b); // multiply both vectors pointwise
-            normalize(fbvectors[t]); // normalize vectors
-            b = backward(b,t-1);
+            double[] f = row(filtered, t, fScratch);
+            if(f == fScratch)
+                filtered.read(t, f);
+            double[] fb = row(smoothed, t, fbScratch);
+            pointMultiplyVect(f,b,fb); // multiply both vectors pointwise
+            if(normalize(fb) == 0) // normalize vectors, fall back to filtering if b vanished
+                System.arraycopy(f, 0, fb, 0, maze.numStates);
+            smoothed.write(t, fb);
+            model.backwardStep(b,sensorData[t],bNext); // b[t-1] uses the reading at t
+
+            // rescale with the forward constant of the same step so that b cannot underflow; a
+            // vanished b (conflicting readings) restarts from the uniform message as in
+            // MazeModel.conflict instead of staying zero for all earlier steps
+            double bSum = 0;
+            for(int i = 0; i < bNext.length; i++)
+                bSum += bNext[i];
+            if(scales[t] > 0 && bSum > 0){
+                for(int i = 0; i < bNext.length; i++)
+                    bNext[i] /= scales[t];
+            }else{
+                MazeModel.normalizeOrUniform(bNext);
+            }
+            double[] tmp = b;
+            b = bNext;
+            bNext = tmp;
         }
     }
 
@@ -95,28 +161,88 @@ public class ProbabilisticReasoning {
      */
     public void forward(){
 
-        for(int t = 1; t < numSteps; t++){
+        logLikelihood = 0;
+        if(numSteps == 0)
+            return;
+        scales[0] = 1;
 
-            // multiply with the transpose of the transition matrix
-            vectors[t] = transitionTranspose.multiplyVector(vectors[t-1]);
-
-            // multiply with the corresponding sensor matrix
-            switch (sensorData[t]){
-                case 'r': vectors[t] = sensorRed.multiplyVector(vectors[t]);
-                    break;
-                case 'b': vectors[t] = sensorBlue.multiplyVector(vectors[t]);
-                    break;
-                case 'g': vectors[t] = sensorGreen.multiplyVector(vectors[t]);
-                    break;
-                case 'y': vectors[t] = sensorYellow.multiplyVector(vectors[t]);
-                    break;
-                default:
-                    break;
+        // the two buffers are only used when the history is not on the heap
+        double[] prev = filtered.read(0, new double[maze.numStates]);
+        double[] scratch = new double[maze.numStates];
+        InferenceListener listener = Metrics.listener();
+        for(int t = 1; t < numSteps; t++){
+            long start = 0, allocated = 0;
+            if(listener != null){
+                start = System.nanoTime();
+                allocated = Metrics.allocatedBytes();
             }
+            double[] next = row(filtered, t, scratch);
+            scales[t] = model.forwardStep(prev, sensorData[t], next);
+            logLikelihood += Math.log(scales[t]);
+            filtered.write(t, next);
+            if(listener != null)
+                listener.stepCompleted(System.nanoTime() - start, Metrics.allocatedSince(allocated), scales[t], next);
+            scratch = prev;
+            prev = next;
+        }
+    }
 
-            normalize(vectors[t]);
+    /**
+     * row
+     * helper function: the array of a heap history row, so that the kernels write straight into
+     * it, or the scratch buffer for any other store
+     */
+    private static double[] row(BeliefHistory history, int t, double[] scratch){
+        return (history instanceof HeapBeliefHistory) ? ((HeapBeliefHistory) history).row(t) : scratch;
+    }
 
-        }
+    private void checkHistory(BeliefHistory history){
+        if(history == null || history.getNumSteps() != numSteps || history.getNumStates() != maze.numStates)
+            throw new IllegalArgumentException("History must hold " + numSteps + " steps of " + maze.numStates + " states");
+    }
+
+    /**
+     * getFiltered
+     * @return the forward vectors of every time step
+     */
+    public BeliefHistory getFiltered(){
+        return filtered;
+    }
+
+    /**
+     * getSmoothed
+     * @return the forward-backward vectors of every time step but 0, null if only forward
+     * propagation was requested without a store for them
+     */
+    public BeliefHistory getSmoothed(){
+        return smoothed;
+    }
+
+    /**
+     * isForwardBackward
+     * @return true if fbvectors has been filled by forward-backward propagation
+     */
+    public boolean isForwardBackward(){
+        return forwardBackward;
+    }
+
+    /**
+     * getLogLikelihood
+     * @return log of the probability of the readings used by forward, i.e. the sum of the logs of
+     * the normalizing constants. Negative infinity if a reading was impossible under the model
+     */
+    public double getLogLikelihood(){
+        return logLikelihood;
+    }
+
+    /**
+     * getScale
+     * @param t time step
+     * @return normalizing constant of the forward step at t, i.e. P(sensorData[t] | earlier readings).
+     * Zero if the reading was impossible under the model
+     */
+    public double getScale(int t){
+        return scales[t];
     }
 
     /**
@@ -128,24 +254,10 @@ public class ProbabilisticReasoning {
      */
     public double[] backward(double[] b, int t){
 
+        // weight by the likelihood of the observed color and multiply with the transition matrix
         double[] result = new double[b.length];
-
-        // multiply with the corresponding sensor matrix
-        switch (sensorData[t]){
-            case 'r': result = sensorRed.multiplyVector(b);
-                break;
-            case 'b': result = sensorBlue.multiplyVector(b);
-                break;
-            case 'g': result = sensorGreen.multiplyVector(b);
-                break;
-            case 'y': result = sensorYellow.multiplyVector(b);
-                break;
-            default:
-                break;
-        }
-
-        // multiply with the transition matrix
-        return transition.multiplyVector(result);
+        model.backwardStep(b, sensorData[t], result);
+        return result;
     }
 
     /**
@@ -153,34 +265,32 @@ public class ProbabilisticReasoning {
      * helper function to multiply two vectors point wise
      * @param first
      * @param second
-     * @return the pointwise product of two vectors
+     * @param result vector overwritten with the pointwise product of two vectors
      */
-    private double[] pointMultiplyVect(double[] first, double[] second){
-        double[] result = new double[first.length];
-
+    private void pointMultiplyVect(double[] first, double[] second, double[] result){
         for(int i = 0; i < first.length; i++)
             result[i] = first[i]*second[i];
-
-        return result;
     }
 
     /**
      * normalize
-     * function to normalize vector
+     * function to normalize vector. A vector that sums to zero is left untouched instead of being
+     * filled with NaN
      * @param vect
+     * @return the sum of the vector before normalization
      */
-    public void normalize(double[] vect){
-        double[] result = new double[vect.length];
-
+    public double normalize(double[] vect){
         double sum = 0;
         for(int i = 0; i < vect.length; i++){
             sum += vect[i];
         }
+        if(!(sum > 0))
+            return 0;
 
         for(int i = 0; i < vect.length; i++){
             vect[i] = vect[i] / sum;
         }
-
+        return sum;
     }
 
     /**
@@ -188,113 +298,11 @@ public class ProbabilisticReasoning {
      * function to build the start vector
      */
     public void buildStartVector(){
-        Arrays.fill(vectors[0], 1.0 / ((double) maze.numStates));
-    }
-
-    /**
-     * buildTransition
-     * function to build transition matrix
-     */
-    public void buildTransition(){
-        transition = new Matrix(maze.numStates,maze.numStates);
-
-        for(int r = 0; r < maze.height; r++){
-            for(int c = 0; c < maze.width; c++){
-
-                int stateNum = maze.getStates(r,c);
-
-                // default zero if it is a wall
-                if(stateNum == -1)
-                    continue;
-
-                int numWalls;
-                List<Integer> neighbors = findNeighbors(r,c);
-
-                if(neighbors.size()==1) {
-                    transition.data[stateNum][stateNum] = 1;
-
-                }else {
-                    numWalls = 5 - neighbors.size();
-                    transition.data[stateNum][stateNum] = (double)numWalls/4.0;
-
-                    for(int num: neighbors){
-                        if(num == stateNum) continue;
-                        transition.data[stateNum][num] = 0.25;
-                    }
-                }
-            }
-        }
-        transitionTranspose = transition.transpose();
-    }
-
-    /**
-     * buildSensor: build sensor matrix
-     * function to build sensor matrices
-     */
-    public void buildSensor(){
-
-        // initialise the four different sensor matrices
-        sensorRed = new Matrix(maze.numStates,maze.numStates);
-        sensorGreen = new Matrix(maze.numStates,maze.numStates);
-        sensorBlue = new Matrix(maze.numStates,maze.numStates);
-        sensorYellow = new Matrix(maze.numStates,maze.numStates);
-
-        for(int r = 0; r < maze.height; r++){
-            for(int c = 0; c < maze.width; c++){
-
-                int stateNum = maze.getStates(r,c);
-
-                // skip if it is a wall
-                if(stateNum == -1)
-                    continue;
-
-                // Set the diagonal of the sensor matrices to its respective probability
-                sensorRed.data[stateNum][stateNum] = wrongColor;
-                sensorGreen.data[stateNum][stateNum] = wrongColor;
-                sensorYellow.data[stateNum][stateNum] = wrongColor;
-                sensorBlue.data[stateNum][stateNum] = wrongColor;
-
-                switch (maze.getChar(r,c)){
-                    case 'r': sensorRed.data[stateNum][stateNum] = rightColor;
-                        break;
-
-                    case 'g': sensorGreen.data[stateNum][stateNum] = rightColor;
-                        break;
-
-                    case 'b': sensorBlue.data[stateNum][stateNum] = rightColor;
-                        break;
-
-                    case 'y': sensorYellow.data[stateNum][stateNum] = rightColor;
-                        break;
-
-                    default:
-                        break;
-
-                }
-            }
-        }
-    }
-
-    /**
-     * findNeighbours
-     * helper function for buildTransition: find all the neighbours of a position, including itself
-     * @param r row number of maze position
-     * @param c column number of maze position
-     * @return list of all neighbours (state number) of a maze position, including itself
-     */
-    private List<Integer> findNeighbors(int r, int c){
-        List<Integer> result = new ArrayList<>();
-
-        // loop through all 9 possibilities
-        for(int i = r-1; i <= r+1; i++){
-            for(int j = c-1; j <= c+1; j++){
-
-                // only consider the 4 adjacent neighbour and the position itself. Check if there is a wall
-                if((i==r || j==c) && maze.isLegal(i,j))
-                    result.add(maze.getStates(i,j));
-            }
-        }
-        return result;
+        if(numSteps == 0)
+            return;
+        double[] start = new double[maze.numStates];
+        Arrays.fill(start, 1.0 / ((double) maze.numStates));
+        filtered.write(0, start);
     }
 
     public static void main(String[] args){
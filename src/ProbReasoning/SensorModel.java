@@ -0,0 +1,217 @@
+package ProbReasoning;
+
+/**
+ * SensorModel
+ * observation model of the color sensor. The diagonal sensor matrices are replaced by one color
+ * index per state and a small emission table, so applying a reading is an in-place element-wise
+ * product in O(numStates) instead of an O(numStates^2) matrix multiply
+ */
+public class SensorModel {
+
+    // colors that can be painted on the floor and reported by the sensor
+    public final static char[] COLORS = {'r', 'g', 'b', 'y'};
+    public final static int NUM_COLORS = COLORS.length;
+
+    // color index used for floor tiles that are not painted with one of COLORS
+    public final static int UNKNOWN_COLOR = NUM_COLORS;
+
+    // reading recorded when the sensor reported nothing; any character that is not one of COLORS
+    // is treated the same way, the robot still moves but no sensor weight is applied
+    public final static char MISSING = '-';
+
+    private final byte[] stateColor; // color index of every state
+    private final double[][] emission; // emission[observed][actual] = P(observed | actual)
+
+    /**
+     * Constructor for SensorModel with a symmetric sensor: the right color is observed with
+     * probability rightColor and every wrong color with probability wrongColor
+     * @param maze
+     * @param rightColor
+     * @param wrongColor
+     */
+    public SensorModel(Maze maze, double rightColor, double wrongColor){
+        this(maze, symmetricEmission(rightColor, wrongColor));
+    }
+
+    /**
+     * Constructor for SensorModel with an arbitrary emission table
+     * @param maze
+     * @param emission emission[observed][actual], NUM_COLORS rows of NUM_COLORS+1 columns where
+     *                 the last column is used for tiles of an unknown color
+     */
+    public SensorModel(Maze maze, double[][] emission){
+        this.emission = copyEmission(emission);
+
+        stateColor = new byte[maze.numStates];
+        for(int r = 0; r < maze.height; r++){
+            for(int c = 0; c < maze.width; c++){
+                int stateNum = maze.getStates(r,c);
+
+                // skip if it is a wall
+                if(stateNum == -1)
+                    continue;
+
+                int color = colorIndex(maze.getChar(r,c));
+                stateColor[stateNum] = (byte) (color == -1 ? UNKNOWN_COLOR : color);
+            }
+        }
+    }
+
+    /**
+     * Constructor for SensorModel from precomputed colors, used by ModelFile
+     * @param stateColor color index of every state, kept without a copy
+     * @param emission emission[observed][actual], as above
+     */
+    SensorModel(byte[] stateColor, double[][] emission){
+        this.emission = copyEmission(emission);
+        for(byte color: stateColor){
+            if(color < 0 || color > UNKNOWN_COLOR)
+                throw new IllegalArgumentException("Invalid color index " + color);
+        }
+        this.stateColor = stateColor;
+    }
+
+    /**
+     * withStateColors
+     * @param stateColor color index of every state, kept without a copy
+     * @return a sensor with the same emission table over other states
+     */
+    SensorModel withStateColors(byte[] stateColor){
+        return new SensorModel(stateColor, emission);
+    }
+
+    /**
+     * copyEmission
+     * helper function to check the shape of an emission table and copy it
+     */
+    private static double[][] copyEmission(double[][] emission){
+        if(emission.length != NUM_COLORS)
+            throw new IllegalArgumentException("Emission table needs " + NUM_COLORS + " rows");
+        double[][] copy = new double[NUM_COLORS][];
+        for(int o = 0; o < NUM_COLORS; o++){
+            if(emission[o].length != NUM_COLORS+1)
+                throw new IllegalArgumentException("Emission table needs " + (NUM_COLORS+1) + " columns");
+            copy[o] = emission[o].clone();
+        }
+        return copy;
+    }
+
+    /**
+     * symmetricEmission
+     * helper function to build the emission table of a sensor that confuses colors uniformly
+     * @param rightColor
+     * @param wrongColor
+     * @return emission table
+     */
+    public static double[][] symmetricEmission(double rightColor, double wrongColor){
+        double[][] table = new double[NUM_COLORS][NUM_COLORS+1];
+        for(int o = 0; o < NUM_COLORS; o++){
+            for(int a = 0; a <= NUM_COLORS; a++){
+                table[o][a] = (o == a) ? rightColor : wrongColor;
+            }
+        }
+        return table;
+    }
+
+    /**
+     * colorIndex
+     * @param color
+     * @return index of the color in COLORS, -1 if it is not a sensor color (i.e. a missing reading)
+     */
+    public static int colorIndex(char color){
+        switch (color){
+            case 'r': return 0;
+            case 'g': return 1;
+            case 'b': return 2;
+            case 'y': return 3;
+            default: return -1;
+        }
+    }
+
+    public int getNumStates(){
+        return stateColor.length;
+    }
+
+    /**
+     * getStateColor
+     * @param stateNum
+     * @return color index of the state, UNKNOWN_COLOR if it is not painted with a sensor color
+     */
+    public int getStateColor(int stateNum){
+        return stateColor[stateNum];
+    }
+
+    /**
+     * likelihood
+     * @param observed color reported by the sensor
+     * @param stateNum
+     * @return P(observed | robot is in stateNum), 1 if the reading is missing
+     */
+    public double likelihood(char observed, int stateNum){
+        int o = colorIndex(observed);
+        if(o == -1)
+            return 1;
+        return emission[o][stateColor[stateNum]];
+    }
+
+    /**
+     * getEmission
+     * @param observed color index of the reading
+     * @param actual color index of the tile
+     * @return P(observed | actual)
+     */
+    public double getEmission(int observed, int actual){
+        return emission[observed][actual];
+    }
+
+    /**
+     * emissionRow
+     * helper for the fused kernels: likelihood of a reading indexed by the color of the tile
+     * @param observed color reported by the sensor
+     * @return row of the emission table, null if the reading is missing
+     */
+    double[] emissionRow(char observed){
+        int o = colorIndex(observed);
+        return (o == -1) ? null : emission[o];
+    }
+
+    /**
+     * stateColors
+     * helper for the fused kernels: color index of every state, not to be modified
+     * @return color index of every state
+     */
+    byte[] stateColors(){
+        return stateColor;
+    }
+
+    /**
+     * weight
+     * function to multiply a vector in place by the likelihood of a reading in every state.
+     * Equivalent to multiplying by the diagonal sensor matrix of that color
+     * @param observed color reported by the sensor
+     * @param vect vector over the states, modified in place
+     * @return false if the reading is missing and the vector was left untouched
+     */
+    public boolean weight(char observed, double[] vect){
+        int o = colorIndex(observed);
+        if(o == -1)
+            return false;
+
+        double[] row = emission[o];
+        for(int i = 0; i < stateColor.length; i++)
+            vect[i] *= row[stateColor[i]];
+        return true;
+    }
+
+    public String toString() {
+        StringBuilder s = new StringBuilder();
+        for (int o = 0; o < NUM_COLORS; o++) {
+            s.append(COLORS[o]).append(':');
+            for (int a = 0; a <= NUM_COLORS; a++) {
+                s.append(' ').append(emission[o][a]);
+            }
+            s.append('\n');
+        }
+        return s.toString();
+    }
+}
@@ -0,0 +1,278 @@
+package ProbReasoning;
+
+import java.util.Arrays;
+
+/**
+ * SparseBeliefFilter
+ * forward filter that only tracks the states holding a non-negligible share of the belief (the
+ * active support). Every step pushes the mass of the active states along their rows of the
+ * transition matrix, weights the states reached, renormalizes and drops the ones whose mass falls
+ * below epsilon. The cost of a step is O(active states) instead of O(numStates), so when the start
+ * position is known the cost follows the reachable frontier rather than the size of the maze.
+ *
+ * The mass dropped at every step is reported as the truncation error; with epsilon = 0 the
+ * filter is exact. An instance is not thread-safe.
+ */
+public class SparseBeliefFilter {
+
+    private final MazeModel model;
+    private final double epsilon;
+
+    // dense storage indexed by state, only the entries listed in active are meaningful
+    private double[] belief, scratch;
+    private int[] active, nextActive;
+    private int numActive;
+
+    // mark[j] == stamp means j has already been reached in the current step
+    private final int[] mark;
+    private int stamp;
+
+    private long numUpdates;
+    private double logLikelihood, lastTruncation, totalTruncation;
+
+    /**
+     * Constructor for SparseBeliefFilter with a known start position
+     * @param model
+     * @param epsilon states with less probability than this are dropped after every step
+     * @param startState state the robot starts in
+     */
+    public SparseBeliefFilter(MazeModel model, double epsilon, int startState){
+        this(model, epsilon);
+        belief[startState] = 1;
+        active[0] = startState;
+        numActive = 1;
+    }
+
+    /**
+     * Constructor for SparseBeliefFilter from a dense start belief
+     * @param model
+     * @param epsilon states with less probability than this are dropped after every step
+     * @param start belief at time step 0, the states below epsilon are dropped right away
+     */
+    public SparseBeliefFilter(MazeModel model, double epsilon, double[] start){
+        this(model, epsilon);
+        if(start.length != model.getNumStates())
+            throw new IllegalArgumentException("Start belief has " + start.length + " states, model has "
+                    + model.getNumStates());
+        for(int i = 0; i < start.length; i++){
+            if(start[i] > 0){
+                belief[i] = start[i];
+                active[numActive++] = i;
+            }
+        }
+        lastTruncation = prune(belief, active, numActive, sum(belief, active, numActive));
+        totalTruncation = lastTruncation;
+    }
+
+    private SparseBeliefFilter(MazeModel model, double epsilon){
+        if(epsilon < 0 || epsilon >= 1)
+            throw new IllegalArgumentException("Epsilon must be in [0, 1)");
+        int numStates = model.getNumStates();
+        this.model = model;
+        this.epsilon = epsilon;
+        belief = new double[numStates];
+        scratch = new double[numStates];
+        active = new int[numStates];
+        nextActive = new int[numStates];
+        mark = new int[numStates];
+    }
+
+    /**
+     * update
+     * advance the belief by one time step with a new reading
+     * @param color color reported by the sensor, any other character is a missing reading
+     * @return the normalizing constant of this step (of the truncated belief). Zero if the reading
+     * is impossible under the model, in which case the belief is the prediction without it
+     */
+    public double update(char color){
+        SparseMatrix transition = model.getTransition();
+        int[] rowPtr = transition.rowPtr;
+        int[] colIdx = transition.colIdx;
+        double[] values = transition.values;
+        SensorModel sensor = model.getSensor();
+        double[] likelihood = sensor.emissionRow(color);
+        byte[] stateColor = sensor.stateColors();
+
+        // predict: push the mass of every active state to its neighbours
+        if(++stamp == 0){
+            Arrays.fill(mark, 0);
+            stamp = 1;
+        }
+        int count = 0;
+        for(int a = 0; a < numActive; a++){
+            int i = active[a];
+            double p = belief[i];
+            belief[i] = 0; // leave the buffer clean for the next swap
+            for(int k = rowPtr[i]; k < rowPtr[i+1]; k++){
+                int j = colIdx[k];
+                if(mark[j] != stamp){
+                    mark[j] = stamp;
+                    scratch[j] = 0;
+                    nextActive[count++] = j;
+                }
+                scratch[j] += values[k]*p;
+            }
+        }
+
+        // weight by the likelihood of the observed color, unless that leaves no mass at all
+        double sum = 0;
+        for(int a = 0; a < count; a++){
+            int j = nextActive[a];
+            sum += (likelihood == null) ? scratch[j] : scratch[j]*likelihood[stateColor[j]];
+        }
+        if(sum > 0 && likelihood != null){
+            for(int a = 0; a < count; a++){
+                int j = nextActive[a];
+                scratch[j] *= likelihood[stateColor[j]];
+            }
+        }
+
+        double[] tmp = belief;
+        belief = scratch;
+        scratch = tmp;
+        int[] tmpActive = active;
+        active = nextActive;
+        nextActive = tmpActive;
+        numActive = count;
+
+        if(sum > 0){
+            lastTruncation = prune(belief, active, numActive, sum);
+        }else{
+            conflict();
+            lastTruncation = 0;
+        }
+        totalTruncation += lastTruncation;
+        numUpdates++;
+        logLikelihood += Math.log(sum);
+        return sum;
+    }
+
+    /**
+     * conflict
+     * helper function for update when the reading has zero probability under the model, as in
+     * MazeModel.conflict: keep the normalized prediction without the reading, or restart from a
+     * uniform belief if even that vanished. Nothing is pruned
+     */
+    private void conflict(){
+        double predicted = sum(belief, active, numActive);
+        if(predicted > 0){
+            for(int a = 0; a < numActive; a++)
+                belief[active[a]] /= predicted;
+            return;
+        }
+        for(int a = 0; a < numActive; a++)
+            belief[active[a]] = 0;
+        numActive = belief.length;
+        for(int i = 0; i < numActive; i++){
+            belief[i] = 1.0 / numActive;
+            active[i] = i;
+        }
+    }
+
+    /**
+     * prune
+     * helper function: normalize the active states, drop the ones below epsilon and renormalize.
+     * The most likely state is always kept
+     * @return probability mass that was dropped
+     */
+    private double prune(double[] vect, int[] support, int count, double sum){
+        double max = 0;
+        for(int a = 0; a < count; a++)
+            max = Math.max(max, vect[support[a]]);
+        double threshold = Math.min(epsilon*sum, max);
+
+        double kept = 0, dropped = 0;
+        int n = 0;
+        for(int a = 0; a < count; a++){
+            int j = support[a];
+            double p = vect[j] / sum;
+            if(vect[j] >= threshold && p > 0){
+                vect[j] = p;
+                support[n++] = j;
+                kept += p;
+            }else{
+                vect[j] = 0;
+                dropped += p;
+            }
+        }
+        numActive = n;
+        for(int a = 0; a < n; a++)
+            vect[support[a]] /= kept;
+        return dropped;
+    }
+
+    private static double sum(double[] vect, int[] support, int count){
+        double sum = 0;
+        for(int a = 0; a < count; a++)
+            sum += vect[support[a]];
+        return sum;
+    }
+
+    /**
+     * currentBelief
+     * @return a dense copy of the belief after the last reading
+     */
+    public double[] currentBelief(){
+        double[] result = new double[belief.length];
+        for(int a = 0; a < numActive; a++)
+            result[active[a]] = belief[active[a]];
+        return result;
+    }
+
+    /**
+     * getProbability
+     * @param stateNum
+     * @return probability that the robot is in stateNum after the last reading
+     */
+    public double getProbability(int stateNum){
+        return belief[stateNum];
+    }
+
+    /**
+     * getActiveStates
+     * @return a copy of the states currently tracked, in no particular order
+     */
+    public int[] getActiveStates(){
+        return Arrays.copyOf(active, numActive);
+    }
+
+    public int getNumActive(){
+        return numActive;
+    }
+
+    /**
+     * getLastTruncation
+     * @return probability mass dropped by the last step
+     */
+    public double getLastTruncation(){
+        return lastTruncation;
+    }
+
+    /**
+     * getTotalTruncation
+     * @return sum of the probability mass dropped by every step so far, a measure of how far the
+     * belief may have drifted from the exact one
+     */
+    public double getTotalTruncation(){
+        return totalTruncation;
+    }
+
+    public long getNumUpdates(){
+        return numUpdates;
+    }
+
+    public double getLogLikelihood(){
+        return logLikelihood;
+    }
+
+    public static void main(String[] args){
+        Maze m = Maze.readFromFile("hard.maz");
+        MazeModel model = new MazeModel(m);
+        SparseBeliefFilter filter = new SparseBeliefFilter(model, 1e-3, m.getStates(0,0));
+        for(char color: new char[]{'r','g','b','b','b','y','y'}){
+            filter.update(color);
+            System.out.println(color + ": active = " + filter.getNumActive()
+                    + ", truncated = " + filter.getTotalTruncation());
+        }
+    }
+}
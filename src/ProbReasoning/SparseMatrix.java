@@ -0,0 +1,236 @@
+package ProbReasoning;
+
+import java.util.Arrays;
+
+/**
+ * SparseMatrix
+ * matrix stored in compressed sparse row (CSR) form. Only the non-zero entries are kept, so the
+ * memory and the cost of a matrix-vector product are both O(nnz) instead of O(numRows*numColumns)
+ */
+public class SparseMatrix {
+
+    // row r occupies the entries rowPtr[r] .. rowPtr[r+1]-1 of colIdx and values
+    public final int[] rowPtr;
+    public final int[] colIdx;
+    public final double[] values;
+    private final int numRows, numColumns;
+
+    /**
+     * Constructor for SparseMatrix from already compressed arrays
+     * @param numRows
+     * @param numColumns
+     * @param rowPtr row offsets, of length numRows+1
+     * @param colIdx column index of every non-zero entry, sorted within each row
+     * @param values value of every non-zero entry
+     */
+    public SparseMatrix(int numRows, int numColumns, int[] rowPtr, int[] colIdx, double[] values){
+        if(rowPtr.length != numRows+1 || colIdx.length != values.length || rowPtr[numRows] != values.length)
+            throw new IllegalArgumentException("Inconsistent CSR arrays");
+        this.numRows = numRows;
+        this.numColumns = numColumns;
+        this.rowPtr = rowPtr;
+        this.colIdx = colIdx;
+        this.values = values;
+    }
+
+    public int getNumRows(){
+        return numRows;
+    }
+
+    public int getNumColumns(){
+        return numColumns;
+    }
+
+    /**
+     * nnz: number of stored (non-zero) entries
+     * @return number of stored entries
+     */
+    public int nnz(){
+        return values.length;
+    }
+
+    /**
+     * get: look up a single entry of the matrix
+     * @param r row number
+     * @param c column number
+     * @return the entry at (r, c), zero if it is not stored
+     */
+    public double get(int r, int c){
+        for(int k = rowPtr[r]; k < rowPtr[r+1]; k++){
+            if(colIdx[k] == c)
+                return values[k];
+        }
+        return 0;
+    }
+
+    /**
+     * transpose: Find the transposition matrix, in O(nnz)
+     * @return transposition matrix
+     */
+    public SparseMatrix transpose(){
+        int[] tRowPtr = new int[numColumns+1];
+        int[] tColIdx = new int[values.length];
+        double[] tValues = new double[values.length];
+
+        // count the entries in every column, then turn the counts into offsets
+        for(int k = 0; k < values.length; k++)
+            tRowPtr[colIdx[k]+1]++;
+        for(int c = 0; c < numColumns; c++)
+            tRowPtr[c+1] += tRowPtr[c];
+
+        // scatter the entries row by row so that the column indices of the result stay sorted
+        int[] next = new int[numColumns];
+        System.arraycopy(tRowPtr, 0, next, 0, numColumns);
+        for(int r = 0; r < numRows; r++){
+            for(int k = rowPtr[r]; k < rowPtr[r+1]; k++){
+                int pos = next[colIdx[k]]++;
+                tColIdx[pos] = r;
+                tValues[pos] = values[k];
+            }
+        }
+        return new SparseMatrix(numColumns, numRows, tRowPtr, tColIdx, tValues);
+    }
+
+    /**
+     * multiplyVector: multiply the matrix A by a vector v (i.e. A*v)
+     * @param vect
+     * @return a vector of the product
+     */
+    public double[] multiplyVector(double[] vect){
+        if(vect.length != numColumns)
+            return null;
+        return multiplyVector(vect, new double[numRows]);
+    }
+
+    /**
+     * multiplyVector: multiply the matrix A by a vector v (i.e. A*v) into a caller supplied vector
+     * @param vect
+     * @param result vector of length numRows, overwritten with the product
+     * @return result
+     */
+    public double[] multiplyVector(double[] vect, double[] result){
+        for(int r = 0; r < numRows; r++){
+            double currSum = 0;
+            for(int k = rowPtr[r]; k < rowPtr[r+1]; k++){
+                currSum += values[k]*vect[colIdx[k]];
+            }
+            result[r] = currSum;
+        }
+        return result;
+    }
+
+    /**
+     * transposeMultiplyVector: multiply the transpose of the matrix by a vector v (i.e. A'*v)
+     * without building the transpose
+     * @param vect
+     * @return a vector of the product
+     */
+    public double[] transposeMultiplyVector(double[] vect){
+        if(vect.length != numRows)
+            return null;
+        return transposeMultiplyVector(vect, new double[numColumns]);
+    }
+
+    /**
+     * transposeMultiplyVector: multiply the transpose of the matrix by a vector v (i.e. A'*v)
+     * into a caller supplied vector
+     * @param vect
+     * @param result vector of length numColumns, overwritten with the product
+     * @return result
+     */
+    public double[] transposeMultiplyVector(double[] vect, double[] result){
+        Arrays.fill(result, 0, numColumns, 0);
+        for(int r = 0; r < numRows; r++){
+            double v = vect[r];
+            if(v == 0)
+                continue;
+            for(int k = rowPtr[r]; k < rowPtr[r+1]; k++){
+                result[colIdx[k]] += values[k]*v;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * multiply: sparse matrix product A*B, row by row with a dense accumulator (Gustavson)
+     * @param other B, with as many rows as A has columns
+     * @return the product
+     */
+    public SparseMatrix multiply(SparseMatrix other){
+        return multiply(other, Long.MAX_VALUE);
+    }
+
+    /**
+     * multiply: sparse matrix product A*B, giving up if it has too many non-zero entries. A first
+     * pass counts the entries of every row, so nothing is allocated for a product that is refused
+     * @param other B, with as many rows as A has columns
+     * @param maxNnz largest number of stored entries accepted
+     * @return the product, null if it would have more than maxNnz entries
+     */
+    public SparseMatrix multiply(SparseMatrix other, long maxNnz){
+        if(other.numRows != numColumns)
+            throw new IllegalArgumentException("Cannot multiply " + numRows + "x" + numColumns + " by "
+                    + other.numRows + "x" + other.numColumns);
+        int[] marker = new int[other.numColumns];
+        Arrays.fill(marker, -1);
+
+        // symbolic pass: number of entries of every row of the product
+        int[] pRowPtr = new int[numRows+1];
+        long nnz = 0;
+        for(int r = 0; r < numRows; r++){
+            int count = 0;
+            for(int k = rowPtr[r]; k < rowPtr[r+1]; k++){
+                int i = colIdx[k];
+                for(int l = other.rowPtr[i]; l < other.rowPtr[i+1]; l++){
+                    int c = other.colIdx[l];
+                    if(marker[c] != r){
+                        marker[c] = r;
+                        count++;
+                    }
+                }
+            }
+            nnz += count;
+            if(nnz > maxNnz || nnz > Integer.MAX_VALUE - 8)
+                return null;
+            pRowPtr[r+1] = (int) nnz;
+        }
+
+        // numeric pass, the columns of every row are sorted before they are written
+        int[] pColIdx = new int[(int) nnz];
+        double[] pValues = new double[(int) nnz];
+        double[] acc = new double[other.numColumns];
+        Arrays.fill(marker, -1);
+        for(int r = 0; r < numRows; r++){
+            int pos = pRowPtr[r];
+            for(int k = rowPtr[r]; k < rowPtr[r+1]; k++){
+                int i = colIdx[k];
+                double v = values[k];
+                for(int l = other.rowPtr[i]; l < other.rowPtr[i+1]; l++){
+                    int c = other.colIdx[l];
+                    if(marker[c] != r){
+                        marker[c] = r;
+                        acc[c] = 0;
+                        pColIdx[pos++] = c;
+                    }
+                    acc[c] += v*other.values[l];
+                }
+            }
+            Arrays.sort(pColIdx, pRowPtr[r], pRowPtr[r+1]);
+            for(int k = pRowPtr[r]; k < pRowPtr[r+1]; k++)
+                pValues[k] = acc[pColIdx[k]];
+        }
+        return new SparseMatrix(numRows, other.numColumns, pRowPtr, pColIdx, pValues);
+    }
+
+    public String toString() {
+        StringBuilder s = new StringBuilder();
+        for (int r = 0; r < numRows; r++) {
+            s.append(r).append(':');
+            for (int k = rowPtr[r]; k < rowPtr[r+1]; k++) {
+                s.append(' ').append(colIdx[k]).append('=').append(values[k]);
+            }
+            s.append('\n');
+        }
+        return s.toString();
+    }
+}
@@ -0,0 +1,266 @@
+package ProbReasoning;
+
+import java.util.Arrays;
+
+/**
+ * StencilEngine
+ * exact inference specialised to the motion model of this project: the robot stays or moves to
+ * one of its 4 neighbours, bouncing off walls, which is a 5-point stencil on the maze grid. The
+ * belief is a flat row-major array over the grid padded by a border of walls, so every cell has
+ * 4 neighbours in the array and no bounds or state-number lookups are needed. Walls always hold
+ * zero belief and have a zero weight, which makes the sweep branch-free and lets the JIT
+ * auto-vectorize it (the jdk.incubator.vector API is not used since it is not available without
+ * extra JVM flags).
+ *
+ * The weights of the stencil come from ModelParameters: a move in direction d has weight move[d],
+ * and a cell keeps stay plus the weights of its blocked directions. The backward step uses the
+ * transposed stencil, in which every neighbour is weighted by the move towards it instead of the
+ * move away from it. The posteriors are the same as the ones of a MazeModel built with the same
+ * parameters; use toStates and fromStates to convert between the two layouts.
+ */
+public class StencilEngine {
+
+    private final Maze maze;
+    private final int paddedWidth, size;
+    private final ModelParameters parameters;
+
+    // per cell of the padded grid: stay probability, 1 on floor tiles, likelihood of every color
+    private final double[] stay;
+    private final double[] open;
+    private final double[][] weight;
+
+    /**
+     * Constructor for StencilEngine with the default sensor accuracy
+     * @param maze
+     */
+    public StencilEngine(Maze maze){
+        this(maze, new SensorModel(maze, ProbabilisticReasoning.rightColor, ProbabilisticReasoning.wrongColor));
+    }
+
+    /**
+     * Constructor for StencilEngine with the default motion
+     * @param maze
+     * @param sensor sensor model of the maze
+     */
+    public StencilEngine(Maze maze, SensorModel sensor){
+        this(maze, sensor, ModelParameters.DEFAULT);
+    }
+
+    /**
+     * Constructor for StencilEngine, the same model as new MazeModel(maze, parameters)
+     * @param maze
+     * @param parameters
+     */
+    public StencilEngine(Maze maze, ModelParameters parameters){
+        this(maze, new SensorModel(maze, parameters.emissionTable()), parameters);
+    }
+
+    /**
+     * Constructor for StencilEngine
+     * @param maze
+     * @param sensor sensor model of the maze
+     * @param parameters motion of the robot; its emission table is not used
+     */
+    public StencilEngine(Maze maze, SensorModel sensor, ModelParameters parameters){
+        this.maze = maze;
+        this.parameters = parameters;
+        paddedWidth = maze.width + 2;
+        size = paddedWidth * (maze.height + 2);
+        stay = new double[size];
+        open = new double[size];
+        weight = new double[SensorModel.NUM_COLORS][size];
+
+        for(int r = 0; r < maze.height; r++){
+            for(int c = 0; c < maze.width; c++){
+                if(!maze.isLegal(r,c))
+                    continue;
+                int idx = index(r,c);
+                int stateNum = maze.getStates(r,c);
+
+                // bounce off every wall: stay with the probability of every blocked direction
+                double p = parameters.getStay();
+                for(int d = 0; d < ModelParameters.NUM_DIRECTIONS; d++){
+                    int[] offset = ModelParameters.OFFSETS[d];
+                    if(!maze.isLegal(r + offset[0], c + offset[1]))
+                        p += parameters.getMove(d);
+                }
+                stay[idx] = p;
+                open[idx] = 1;
+
+                for(int o = 0; o < SensorModel.NUM_COLORS; o++)
+                    weight[o][idx] = sensor.getEmission(o, sensor.getStateColor(stateNum));
+            }
+        }
+    }
+
+    /**
+     * index
+     * @param r row number of maze position
+     * @param c column number of maze position
+     * @return index of the position in the padded grid
+     */
+    public int index(int r, int c){
+        return (r+1)*paddedWidth + (c+1);
+    }
+
+    /**
+     * getSize
+     * @return length of a belief vector over the padded grid
+     */
+    public int getSize(){
+        return size;
+    }
+
+    /**
+     * uniformBelief
+     * @return a new belief over the padded grid with equal probability on every floor tile
+     */
+    public double[] uniformBelief(){
+        double[] belief = new double[size];
+        double p = 1.0 / ((double) maze.numStates);
+        for(int i = 0; i < size; i++)
+            belief[i] = open[i]*p;
+        return belief;
+    }
+
+    /**
+     * forwardStep
+     * next = normalize(sensor*transitionTranspose*prev) on the grid
+     * @param prev belief at the previous time step
+     * @param observed color reported by the sensor at this time step
+     * @param next vector overwritten with the belief at this time step, must not be prev
+     * @return the normalizing constant, i.e. P(observed | readings so far)
+     */
+    public double forwardStep(double[] prev, char observed, double[] next){
+        forwardStencil(prev, weightOf(observed), next);
+
+        // the sum is kept out of the sweep so that the sweep itself stays vectorizable
+        double sum = 0;
+        for(int i = 0; i < size; i++)
+            sum += next[i];
+        if(!(sum > 0)){
+            // the reading is impossible under the model: keep the prediction without it, or restart
+            // from a uniform belief if even that vanished, as MazeModel.conflict does
+            forwardStencil(prev, open, next);
+            sum = 0;
+            for(int i = 0; i < size; i++)
+                sum += next[i];
+            if(sum > 0){
+                for(int i = 0; i < size; i++)
+                    next[i] /= sum;
+            }else{
+                double p = 1.0 / maze.numStates;
+                for(int i = 0; i < size; i++)
+                    next[i] = open[i]*p;
+            }
+            return 0;
+        }
+        double scale = 1.0 / sum;
+        for(int i = 0; i < size; i++)
+            next[i] *= scale;
+        return sum;
+    }
+
+    /**
+     * backwardStep
+     * result = transition*sensor*b on the grid
+     * @param b backward vector
+     * @param observed color reported by the sensor used to weight b
+     * @param result vector overwritten with the new backward vector, must not be b
+     * @param scratch buffer of the same length, overwritten
+     */
+    public void backwardStep(double[] b, char observed, double[] result, double[] scratch){
+        double[] w = weightOf(observed);
+        for(int i = 0; i < size; i++)
+            scratch[i] = w[i]*b[i];
+        // the transpose: a cell reaches its north neighbour by moving north, and so on
+        stencil(scratch, open, result, parameters.getMove(ModelParameters.NORTH), parameters.getMove(ModelParameters.SOUTH),
+                parameters.getMove(ModelParameters.WEST), parameters.getMove(ModelParameters.EAST));
+    }
+
+    /**
+     * forwardStencil
+     * helper function: the stencil of the transition transpose, where the north neighbour reaches a
+     * cell by moving south, and so on
+     */
+    private void forwardStencil(double[] in, double[] w, double[] out){
+        stencil(in, w, out, parameters.getMove(ModelParameters.SOUTH), parameters.getMove(ModelParameters.NORTH),
+                parameters.getMove(ModelParameters.EAST), parameters.getMove(ModelParameters.WEST));
+    }
+
+    /**
+     * stencil
+     * helper function: out = w * (stay*in + north*(north of in) + south*(south of in) + ...). Cells
+     * of the border are walls, so only the rows inside the border need to be swept
+     */
+    private void stencil(double[] in, double[] w, double[] out, double north, double south, double west, double east){
+        int from = paddedWidth, to = size - paddedWidth;
+        int pw = paddedWidth;
+        for(int i = from; i < to; i++){
+            out[i] = w[i]*(stay[i]*in[i] + north*in[i-pw] + south*in[i+pw] + west*in[i-1] + east*in[i+1]);
+        }
+        Arrays.fill(out, 0, from, 0);
+        Arrays.fill(out, to, size, 0);
+    }
+
+    /**
+     * weightOf
+     * @param observed
+     * @return likelihood of the reading in every cell, the floor mask for a missing reading
+     */
+    private double[] weightOf(char observed){
+        int o = SensorModel.colorIndex(observed);
+        return (o == -1) ? open : weight[o];
+    }
+
+    /**
+     * toStates
+     * convert a vector over the padded grid into a vector over the state numbers
+     * @param grid
+     * @param states vector of length numStates, overwritten
+     * @return states
+     */
+    public double[] toStates(double[] grid, double[] states){
+        for(int r = 0; r < maze.height; r++){
+            for(int c = 0; c < maze.width; c++){
+                int stateNum = maze.getStates(r,c);
+                if(stateNum != -1)
+                    states[stateNum] = grid[index(r,c)];
+            }
+        }
+        return states;
+    }
+
+    /**
+     * fromStates
+     * convert a vector over the state numbers into a vector over the padded grid
+     * @param states
+     * @param grid vector of length getSize(), overwritten
+     * @return grid
+     */
+    public double[] fromStates(double[] states, double[] grid){
+        Arrays.fill(grid, 0);
+        for(int r = 0; r < maze.height; r++){
+            for(int c = 0; c < maze.width; c++){
+                int stateNum = maze.getStates(r,c);
+                if(stateNum != -1)
+                    grid[index(r,c)] = states[stateNum];
+            }
+        }
+        return grid;
+    }
+
+    public static void main(String[] args){
+        Maze m = Maze.readFromFile("medium.maz");
+        StencilEngine engine = new StencilEngine(m);
+        double[] belief = engine.uniformBelief();
+        double[] next = new double[engine.getSize()];
+        for(char color: new char[]{'r','g','g','b'}){
+            engine.forwardStep(belief, color, next);
+            double[] tmp = belief;
+            belief = next;
+            next = tmp;
+        }
+        System.out.println(Arrays.toString(engine.toStates(belief, new double[m.numStates])));
+    }
+}
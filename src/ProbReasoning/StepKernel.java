@@ -0,0 +1,33 @@
+package ProbReasoning;
+
+/**
+ * StepKernel
+ * one time step of exact inference on a MazeModel. Implemented by MazeModel itself (sequential)
+ * and by ParallelKernel, so that the filters can run on either
+ */
+public interface StepKernel {
+
+    /**
+     * forwardStep
+     * next = normalize(sensor*transitionTranspose*prev), written into the caller supplied vector
+     * @param prev belief at the previous time step
+     * @param observed color reported by the sensor at this time step
+     * @param next vector overwritten with the belief at this time step, must not be prev
+     * @return the normalizing constant, i.e. P(observed | readings so far). Zero if the reading is
+     * impossible under the model, in which case next holds the prediction without the reading
+     */
+    double forwardStep(double[] prev, char observed, double[] next);
+
+    /**
+     * backwardStep
+     * result = transition*sensor*b, written into the caller supplied vector
+     * @param b backward vector
+     * @param observed color reported by the sensor used to weight b
+     * @param result vector overwritten with the new backward vector, must not be b
+     */
+    void backwardStep(double[] b, char observed, double[] result);
+
+    int getNumStates();
+
+    MazeModel getModel();
+}
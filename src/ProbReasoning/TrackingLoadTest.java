@@ -0,0 +1,149 @@
+package ProbReasoning;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TrackingLoadTest
+ * drives a TrackingService with many simulated robots and reports the throughput and the latency
+ * of single readings. Every thread owns a fixed set of robots and sends their readings one at a
+ * time, round robin, so the readings of a robot arrive in order. The readings come from random
+ * walks of MazeGenerator, the same for the same seed.
+ *
+ * With "metrics" as the last argument the run is instrumented (see Metrics) and the aggregate
+ * InferenceStats of the reported pass are printed as well.
+ *
+ * Usage: java ProbReasoning.TrackingLoadTest [inproc|http] [robots] [threads] [steps] [maze file] [metrics]
+ */
+public class TrackingLoadTest {
+
+    /**
+     * Client
+     * one way of sending a reading to the service
+     */
+    private interface Client {
+        void send(String robotId, char color) throws Exception;
+    }
+
+    /**
+     * run
+     * send every reading of every trajectory and measure each call
+     * @param client
+     * @param trajectories one per robot
+     * @param numThreads
+     * @return report of the run
+     */
+    private static String run(Client client, MazeGenerator.Trajectory[] trajectories, int numThreads) throws Exception {
+        long[][] latencies = new long[numThreads][];
+        Thread[] threads = new Thread[numThreads];
+        Exception[] failure = new Exception[1];
+        String[] robotIds = new String[trajectories.length];
+        for(int i = 0; i < robotIds.length; i++)
+            robotIds[i] = "robot" + i;
+
+        long start = System.nanoTime();
+        for(int t = 0; t < numThreads; t++){
+            int thread = t;
+            threads[t] = new Thread(() -> {
+                int count = 0;
+                for(int i = thread; i < trajectories.length; i += numThreads)
+                    count += trajectories[i].length() - 1;
+                long[] times = new long[count];
+                int n = 0;
+                try{
+                    // sensorData[0] is not used, as everywhere else
+                    for(int step = 1; n < count; step++){
+                        for(int i = thread; i < trajectories.length; i += numThreads){
+                            if(step >= trajectories[i].length())
+                                continue;
+                            long before = System.nanoTime();
+                            client.send(robotIds[i], trajectories[i].sensorData[step]);
+                            times[n++] = System.nanoTime() - before;
+                        }
+                    }
+                }catch(Exception e){
+                    synchronized(failure){
+                        failure[0] = e;
+                    }
+                }
+                latencies[thread] = Arrays.copyOf(times, n);
+            });
+            threads[t].start();
+        }
+        for(Thread thread: threads)
+            thread.join();
+        long elapsed = System.nanoTime() - start;
+        if(failure[0] != null)
+            throw failure[0];
+
+        long[] all = Arrays.stream(latencies).flatMapToLong(Arrays::stream).toArray();
+        Arrays.sort(all);
+        return String.format(Locale.ROOT,
+                "%d updates in %.1f ms: %.0f updates/s, latency p50 %.1f us, p99 %.1f us, max %.1f us",
+                all.length, elapsed / 1e6, all.length / (elapsed / 1e9),
+                percentile(all, 0.50) / 1e3, percentile(all, 0.99) / 1e3, all[all.length-1] / 1e3);
+    }
+
+    private static long percentile(long[] sorted, double p){
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    public static void main(String[] args) throws Exception {
+        String mode = (args.length > 0) ? args[0] : "inproc";
+        int numRobots = (args.length > 1) ? Integer.parseInt(args[1]) : 500;
+        int numThreads = (args.length > 2) ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        int numSteps = (args.length > 3) ? Integer.parseInt(args[3]) : 100;
+        Maze maze = (args.length > 4) ? Maze.readFromFile(args[4]) : MazeGenerator.generate(100, 100, 0.2, 1);
+        InferenceStats stats = null;
+        if(args.length > 5 && args[5].equals("metrics")){
+            stats = new InferenceStats(16);
+            Metrics.register(stats);
+        }
+
+        MazeModel model = new MazeModel(maze);
+        MazeGenerator.Trajectory[] trajectories = MazeGenerator.simulateMany(maze, numRobots, numSteps, 1);
+        System.out.println(mode + ": " + numRobots + " robots, " + numThreads + " threads, " + numSteps
+                + " steps, " + model.getNumStates() + " states");
+
+        try(TrackingService service = new TrackingService(model, 1, TimeUnit.MINUTES)){
+            if(mode.equals("http")){
+                TrackingServer.useNoDelay();
+                try(TrackingServer server = new TrackingServer(service, 0, numThreads)){
+                    HttpClient http = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+                    String base = server.getUri().toString();
+                    Client client = (robotId, color) -> {
+                        HttpRequest request = HttpRequest.newBuilder(URI.create(base + robotId))
+                                .POST(HttpRequest.BodyPublishers.ofString(String.valueOf(color))).build();
+                        HttpResponse<Void> response = http.send(request, HttpResponse.BodyHandlers.discarding());
+                        if(response.statusCode() != 200)
+                            throw new IllegalStateException("HTTP " + response.statusCode() + " for " + robotId);
+                    };
+                    // first pass warms the JIT, second is reported
+                    run(client, trajectories, numThreads);
+                    for(int i = 0; i < numRobots; i++)
+                        service.remove("robot" + i);
+                    if(stats != null)
+                        stats.reset();
+                    System.out.println(run(client, trajectories, numThreads));
+                }
+            }else{
+                Client client = service::update;
+                run(client, trajectories, numThreads);
+                for(int i = 0; i < numRobots; i++)
+                    service.remove("robot" + i);
+                if(stats != null)
+                    stats.reset();
+                System.out.println(run(client, trajectories, numThreads));
+            }
+            System.out.println(service.get("robot0"));
+            if(stats != null)
+                System.out.println(stats);
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package ProbReasoning;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.JMException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TrackingServer
+ * HTTP front end of a TrackingService, bound to the loopback interface only. Requests:
+ *
+ *   POST   /robots/{id}   body of sensor readings (e.g. "rgby"), applied in order
+ *   GET    /robots/{id}   current state of the robot
+ *   DELETE /robots/{id}   drop the session of the robot
+ *
+ * Responses are small JSON objects; a robot without a session gives 404. The main function also
+ * publishes an InferenceStats over JMX (ProbReasoning:type=InferenceStats,name="tracking").
+ *
+ * The JDK server writes headers and body separately, so without TCP_NODELAY every small response
+ * waits for the delayed acknowledgement of the client (about 40 ms). The main functions of this
+ * class and of TrackingLoadTest turn it on; other programs embedding the server should be started
+ * with -Dsun.net.httpserver.nodelay=true.
+ *
+ * Usage: java ProbReasoning.TrackingServer [maze file] [port]
+ */
+public class TrackingServer implements AutoCloseable {
+
+    private final static String PREFIX = "/robots/";
+
+    private final TrackingService service;
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    /**
+     * Constructor for TrackingServer, the server is started right away
+     * @param service
+     * @param port port on the loopback interface, 0 for any free port
+     * @param numThreads number of threads handling requests
+     */
+    public TrackingServer(TrackingService service, int port, int numThreads) throws IOException {
+        this.service = service;
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        executor = Executors.newFixedThreadPool(numThreads);
+        server.setExecutor(executor);
+        server.createContext(PREFIX, this::handle);
+        server.start();
+    }
+
+    /**
+     * getPort
+     * @return the port the server listens on
+     */
+    public int getPort(){
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * getUri
+     * @return the URI robot ids are appended to, on the address the server is bound to
+     */
+    public URI getUri(){
+        InetSocketAddress address = server.getAddress();
+        try{
+            return new URI("http", null, address.getAddress().getHostAddress(), address.getPort(), PREFIX, null, null);
+        }catch(URISyntaxException e){
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * useNoDelay
+     * turn TCP_NODELAY on for the JDK server unless it was set on the command line; must be called
+     * before the first server is created, the JDK reads the property once
+     */
+    static void useNoDelay(){
+        if(System.getProperty("sun.net.httpserver.nodelay") == null)
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try{
+            String robotId = exchange.getRequestURI().getPath().substring(PREFIX.length());
+            if(robotId.isEmpty() || robotId.indexOf('/') != -1){
+                send(exchange, 404, "{\"error\":\"unknown path\"}");
+                return;
+            }
+            switch(exchange.getRequestMethod()){
+                case "POST":
+                    char[] readings;
+                    try(InputStream in = exchange.getRequestBody()){
+                        readings = new String(in.readAllBytes(), StandardCharsets.US_ASCII).trim().toCharArray();
+                    }
+                    send(exchange, 200, json(service.updateAll(robotId, readings)));
+                    break;
+                case "GET":
+                    TrackingService.Snapshot snapshot = service.get(robotId);
+                    if(snapshot == null)
+                        send(exchange, 404, "{\"error\":\"no session\"}");
+                    else
+                        send(exchange, 200, json(snapshot));
+                    break;
+                case "DELETE":
+                    send(exchange, service.remove(robotId) ? 200 : 404, "{}");
+                    break;
+                default:
+                    exchange.getResponseHeaders().set("Allow", "GET, POST, DELETE");
+                    send(exchange, 405, "{\"error\":\"method not allowed\"}");
+            }
+        }finally{
+            exchange.close();
+        }
+    }
+
+    private static String json(TrackingService.Snapshot snapshot){
+        return String.format(Locale.ROOT,
+                "{\"robot\":\"%s\",\"updates\":%d,\"state\":%d,\"probability\":%s,\"logLikelihood\":%s}",
+                snapshot.robotId.replace("\\", "\\\\").replace("\"", "\\\""), snapshot.numUpdates,
+                snapshot.mostLikelyState, snapshot.probability, snapshot.logLikelihood);
+    }
+
+    private static void send(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try(OutputStream out = exchange.getResponseBody()){
+            out.write(bytes);
+        }
+    }
+
+    @Override
+    public void close(){
+        server.stop(0);
+        executor.shutdown();
+    }
+
+    public static void main(String[] args) throws IOException, JMException {
+        String file = (args.length > 0) ? args[0] : "medium.maz";
+        int port = (args.length > 1) ? Integer.parseInt(args[1]) : 8080;
+        Maze maze = Maze.readFromFile(file);
+        if(maze == null){
+            System.err.println("Cannot read " + file);
+            System.err.println("Usage: java ProbReasoning.TrackingServer [maze file] [port]");
+            System.exit(1);
+        }
+        useNoDelay();
+        InferenceStats stats = new InferenceStats(16);
+        Metrics.register(stats);
+        stats.registerMBean("tracking");
+        MazeModel model = new MazeModel(maze);
+        TrackingService service = new TrackingService(model, 10, TimeUnit.MINUTES);
+        TrackingServer server = new TrackingServer(service, port, Runtime.getRuntime().availableProcessors());
+        System.out.println("Tracking robots in " + file + " on " + server.getUri() + "{id}");
+    }
+}
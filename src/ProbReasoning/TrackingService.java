@@ -0,0 +1,216 @@
+package ProbReasoning;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TrackingService
+ * tracks many robots at once in the same maze. Every robot has its own session holding a
+ * streaming OnlineFilter, while the model (and its kernel) is immutable and shared by all of them.
+ * Sessions are created on the first reading of a robot and evicted after they have been idle for
+ * a while.
+ *
+ * Readings of different robots are processed concurrently; readings of the same robot are applied
+ * one at a time in the order the calls lock its session, so a client should send the readings of
+ * one robot from one thread (or wait for each call to return). The service is thread-safe.
+ */
+public class TrackingService implements AutoCloseable {
+
+    private final StepKernel kernel;
+    private final long idleNanos;
+    private final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService evictor;
+    private final ScheduledFuture<?> evictTask;
+
+    /**
+     * Session
+     * belief of one robot. Guarded by its own lock; once evicted it is never used again
+     */
+    private final class Session {
+        private final OnlineFilter filter = new OnlineFilter(kernel);
+        private volatile long lastAccess = System.nanoTime();
+        private boolean evicted;
+    }
+
+    /**
+     * Snapshot
+     * state of a session at one moment
+     */
+    public static class Snapshot {
+        public final String robotId;
+        public final long numUpdates;
+        public final int mostLikelyState;
+        public final double probability, logLikelihood;
+
+        public Snapshot(String robotId, long numUpdates, int mostLikelyState, double probability, double logLikelihood){
+            this.robotId = robotId;
+            this.numUpdates = numUpdates;
+            this.mostLikelyState = mostLikelyState;
+            this.probability = probability;
+            this.logLikelihood = logLikelihood;
+        }
+
+        public String toString(){
+            return robotId + ": " + numUpdates + " readings, most likely state " + mostLikelyState
+                    + " (p = " + probability + "), log likelihood = " + logLikelihood;
+        }
+    }
+
+    /**
+     * Constructor for TrackingService
+     * @param kernel kernel of the shared model, e.g. the MazeModel itself
+     * @param idleTimeout sessions without readings for this long are evicted
+     * @param unit unit of idleTimeout
+     */
+    public TrackingService(StepKernel kernel, long idleTimeout, TimeUnit unit){
+        if(idleTimeout <= 0)
+            throw new IllegalArgumentException("Idle timeout must be positive");
+        this.kernel = kernel;
+        this.idleNanos = unit.toNanos(idleTimeout);
+        evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "tracking-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1, idleNanos / 2);
+        evictTask = evictor.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * update
+     * apply one reading to the belief of a robot, creating its session if needed
+     * @param robotId
+     * @param color color reported by the sensor, any other character is a missing reading
+     * @return the normalizing constant of the step, i.e. P(color | previous readings)
+     */
+    public double update(String robotId, char color){
+        while(true){
+            Session session = sessions.computeIfAbsent(robotId, id -> new Session());
+            synchronized(session){
+                if(session.evicted)
+                    continue; // lost a race with eviction, start a fresh session
+                double norm = session.filter.update(color);
+                session.lastAccess = System.nanoTime();
+                return norm;
+            }
+        }
+    }
+
+    /**
+     * updateAll
+     * apply a batch of readings of one robot, in order and without readings of other callers in
+     * between
+     * @param robotId
+     * @param readings
+     * @return snapshot of the session after the last reading
+     */
+    public Snapshot updateAll(String robotId, char[] readings){
+        while(true){
+            Session session = sessions.computeIfAbsent(robotId, id -> new Session());
+            synchronized(session){
+                if(session.evicted)
+                    continue;
+                for(char color: readings)
+                    session.filter.update(color);
+                session.lastAccess = System.nanoTime();
+                return snapshot(robotId, session);
+            }
+        }
+    }
+
+    /**
+     * get
+     * @param robotId
+     * @return snapshot of the session of a robot, null if it has none
+     */
+    public Snapshot get(String robotId){
+        Session session = sessions.get(robotId);
+        if(session == null)
+            return null;
+        synchronized(session){
+            return session.evicted ? null : snapshot(robotId, session);
+        }
+    }
+
+    /**
+     * belief
+     * @param robotId
+     * @return a copy of the current belief of a robot, null if it has no session
+     */
+    public double[] belief(String robotId){
+        Session session = sessions.get(robotId);
+        if(session == null)
+            return null;
+        synchronized(session){
+            return session.evicted ? null : session.filter.currentBelief();
+        }
+    }
+
+    /**
+     * remove
+     * drop the session of a robot
+     * @param robotId
+     * @return true if it had one
+     */
+    public boolean remove(String robotId){
+        Session session = sessions.remove(robotId);
+        if(session == null)
+            return false;
+        synchronized(session){
+            session.evicted = true;
+        }
+        return true;
+    }
+
+    public int getNumSessions(){
+        return sessions.size();
+    }
+
+    public StepKernel getKernel(){
+        return kernel;
+    }
+
+    /**
+     * evictIdle
+     * drop every session that has been idle for longer than the timeout
+     * @return number of sessions evicted
+     */
+    public int evictIdle(){
+        long now = System.nanoTime();
+        int count = 0;
+        for(Map.Entry<String, Session> entry: sessions.entrySet()){
+            Session session = entry.getValue();
+            if(now - session.lastAccess < idleNanos)
+                continue;
+            synchronized(session){
+                if(!session.evicted && now - session.lastAccess >= idleNanos){
+                    session.evicted = true;
+                    sessions.remove(entry.getKey(), session);
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    private static Snapshot snapshot(String robotId, Session session){
+        OnlineFilter filter = session.filter;
+        int best = 0;
+        for(int i = 1; i < filter.getModel().getNumStates(); i++){
+            if(filter.getProbability(i) > filter.getProbability(best))
+                best = i;
+        }
+        return new Snapshot(robotId, filter.getNumUpdates(), best, filter.getProbability(best),
+                session.filter.getLogLikelihood());
+    }
+
+    @Override
+    public void close(){
+        evictTask.cancel(false);
+        evictor.shutdown();
+    }
+}
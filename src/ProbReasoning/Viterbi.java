@@ -0,0 +1,213 @@
+package ProbReasoning;
+
+import java.util.Arrays;
+
+/**
+ * Viterbi
+ * decoder for the single most likely sequence of states given the sensor readings. Works in log
+ * space over the neighbours of every state (the rows of the transposed transition matrix), so a
+ * time step costs O(nnz). The backpointer of a state is the position of the chosen predecessor
+ * in its row, which fits in one byte since a state has at most 5 predecessors.
+ *
+ * With a checkpoint interval, only the messages at every interval-th time step are kept during
+ * the first pass and the backpointers are recomputed one segment at a time while tracing back,
+ * so memory is O((T/interval)*numStates*8 + interval*numStates) bytes instead of T*numStates.
+ *
+ * Time steps are interpreted the same way as in ProbabilisticReasoning: the belief at time step 0
+ * is the start vector and sensorData[0] is not used.
+ */
+public class Viterbi {
+
+    private final MazeModel model;
+    private final int interval;
+
+    // log of the transposed transition entries and of the emission table
+    private final double[] logTransition;
+    private final double[][] logEmission;
+
+    private double logProbability;
+
+    /**
+     * Constructor for Viterbi keeping every backpointer
+     * @param model
+     */
+    public Viterbi(MazeModel model){
+        this(model, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Constructor for Viterbi with a checkpoint interval
+     * @param model
+     * @param interval number of time steps between checkpoints, 0 to use about sqrt(T)
+     */
+    public Viterbi(MazeModel model, int interval){
+        if(interval < 0)
+            throw new IllegalArgumentException("Checkpoint interval must not be negative");
+        this.model = model;
+        this.interval = interval;
+
+        double[] values = model.getTransitionTranspose().values;
+        logTransition = new double[values.length];
+        for(int k = 0; k < values.length; k++)
+            logTransition[k] = Math.log(values[k]);
+
+        SensorModel sensor = model.getSensor();
+        logEmission = new double[SensorModel.NUM_COLORS][SensorModel.NUM_COLORS+1];
+        for(int o = 0; o < SensorModel.NUM_COLORS; o++){
+            for(int a = 0; a <= SensorModel.NUM_COLORS; a++)
+                logEmission[o][a] = Math.log(sensor.getEmission(o, a));
+        }
+    }
+
+    /**
+     * decode
+     * find the most likely path starting from a uniform belief
+     * @param sensorData
+     * @return state number of every time step on the most likely path
+     */
+    public int[] decode(char[] sensorData){
+        return decode(model.uniformBelief(), sensorData);
+    }
+
+    /**
+     * decode
+     * find the most likely path
+     * @param start belief at time step 0
+     * @param sensorData
+     * @return state number of every time step on the most likely path
+     */
+    public int[] decode(double[] start, char[] sensorData){
+        int numSteps = sensorData.length;
+        int numStates = model.getNumStates();
+        int[] path = new int[numSteps];
+        if(numSteps == 0)
+            return path;
+
+        int step = (interval > 0) ? interval : Math.max(1, (int) Math.ceil(Math.sqrt(numSteps)));
+        step = Math.min(step, numSteps - 1);
+        int numSegments = (step == 0) ? 1 : (numSteps - 2) / step + 1;
+
+        double[] delta = new double[numStates];
+        double[] scratch = new double[numStates];
+        for(int i = 0; i < numStates; i++)
+            delta[i] = Math.log(start[i]);
+
+        byte[][] backpointers = new byte[step][];
+        for(int k = 0; k < step; k++)
+            backpointers[k] = new byte[numStates];
+
+        double[][] checkpoints = null;
+        if(numSegments == 1){
+            // everything fits in one segment, keep the backpointers of the first pass
+            delta = advance(delta, scratch, sensorData, 0, numSteps-1, backpointers);
+        }else{
+            checkpoints = new double[numSegments][];
+            for(int s = 0; s < numSegments; s++){
+                checkpoints[s] = delta.clone();
+                int first = s*step;
+                int end = Math.min(first + step, numSteps - 1);
+                double[] next = advance(delta, scratch, sensorData, first, end, null);
+                scratch = (next == delta) ? scratch : delta;
+                delta = next;
+            }
+        }
+
+        // most likely final state
+        int best = 0;
+        for(int i = 1; i < numStates; i++){
+            if(delta[i] > delta[best])
+                best = i;
+        }
+        logProbability = delta[best];
+        path[numSteps-1] = best;
+
+        // trace back one segment at a time, from the last to the first
+        for(int s = numSegments-1; s >= 0; s--){
+            int first = s*step;
+            int end = Math.min(first + step, numSteps - 1);
+            if(checkpoints != null){
+                System.arraycopy(checkpoints[s], 0, delta, 0, numStates);
+                advance(delta, scratch, sensorData, first, end, backpointers);
+                checkpoints[s] = null;
+            }
+            for(int t = end; t > first; t--)
+                path[t-1] = predecessor(path[t], backpointers[t-first-1][path[t]]);
+        }
+        return path;
+    }
+
+    /**
+     * advance
+     * helper function: run the max-product recursion from time step from to time step to
+     * @param delta log message at time step from, may be overwritten
+     * @param scratch buffer of length numStates, may be overwritten
+     * @param sensorData
+     * @param from
+     * @param to
+     * @param backpointers if not null, row t-from-1 receives the backpointers of time step t
+     * @return the log message at time step to (either delta or scratch)
+     */
+    private double[] advance(double[] delta, double[] scratch, char[] sensorData, int from, int to,
+                             byte[][] backpointers){
+        SparseMatrix transitionTranspose = model.getTransitionTranspose();
+        int[] rowPtr = transitionTranspose.rowPtr;
+        int[] colIdx = transitionTranspose.colIdx;
+        byte[] stateColor = model.getSensor().stateColors();
+        int numStates = model.getNumStates();
+
+        double[] prev = delta, next = scratch;
+        for(int t = from+1; t <= to; t++){
+            int o = SensorModel.colorIndex(sensorData[t]);
+            double[] logLikelihood = (o == -1) ? null : logEmission[o];
+            byte[] bp = (backpointers == null) ? null : backpointers[t-from-1];
+
+            for(int j = 0; j < numStates; j++){
+                // best predecessor of j among its neighbours
+                double bestValue = Double.NEGATIVE_INFINITY;
+                int bestK = rowPtr[j];
+                for(int k = rowPtr[j]; k < rowPtr[j+1]; k++){
+                    double v = prev[colIdx[k]] + logTransition[k];
+                    if(v > bestValue){
+                        bestValue = v;
+                        bestK = k;
+                    }
+                }
+                if(logLikelihood != null)
+                    bestValue += logLikelihood[stateColor[j]];
+                next[j] = bestValue;
+                if(bp != null)
+                    bp[j] = (byte) (bestK - rowPtr[j]);
+            }
+            double[] tmp = prev;
+            prev = next;
+            next = tmp;
+        }
+        return prev;
+    }
+
+    /**
+     * predecessor
+     * helper function: turn a backpointer back into a state number
+     * @param stateNum
+     * @param backpointer position of the predecessor in the row of stateNum
+     * @return state number of the predecessor
+     */
+    private int predecessor(int stateNum, byte backpointer){
+        SparseMatrix transitionTranspose = model.getTransitionTranspose();
+        return transitionTranspose.colIdx[transitionTranspose.rowPtr[stateNum] + backpointer];
+    }
+
+    /**
+     * getLogProbability
+     * @return log of the joint probability of the last decoded path and its readings
+     */
+    public double getLogProbability(){
+        return logProbability;
+    }
+
+    public static void main(String[] args){
+        Maze m = Maze.readFromFile("medium.maz");
+        int[] path = new Viterbi(new MazeModel(m)).decode(new char[]{'r','g','g','b','b','y'});
+        System.out.println(Arrays.toString(path));
+    }
+}
@@ -0,0 +1,107 @@
+package ProbReasoning;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.util.SplittableRandom;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+/**
+ * NumericsTest
+ * regression test of the scaled forward and forward-backward passes on long sequences, where
+ * unscaled messages would underflow. For every bundled maze it runs ProbabilisticReasoning and
+ * CheckpointSmoother over a random walk of the robot and over random readings (with runs of
+ * missing readings), and checks that
+ *
+ *   - no filtered or smoothed marginal holds NaN or infinity,
+ *   - every filtered and smoothed marginal sums to 1,
+ *   - CheckpointSmoother gives the same marginals and log likelihood as ProbabilisticReasoning,
+ *     and the log likelihood is finite.
+ *
+ * The length of the sequences can be changed with -Dnumerics.steps=..., 10^5 by default.
+ */
+public class NumericsTest {
+
+    private final static double TOLERANCE = 1e-9;
+    private final static int NUM_STEPS = Integer.getInteger("numerics.steps", 100000);
+
+    @ParameterizedTest
+    @ValueSource(strings = {"simple.maz", "medium.maz", "hard.maz"})
+    public void randomWalk(String file){
+        Maze maze = read(file);
+        check(new MazeModel(maze), MazeGenerator.simulate(maze, NUM_STEPS - 1, 1).sensorData);
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"simple.maz", "medium.maz", "hard.maz"})
+    public void randomReadings(String file){
+        check(new MazeModel(read(file)), randomReadings(NUM_STEPS, 2));
+    }
+
+    private static Maze read(String file){
+        Maze maze = Maze.readFromFile(file);
+        assertNotNull(maze, file + " cannot be read");
+        return maze;
+    }
+
+    /**
+     * check
+     * run both smoothers over one sequence and compare them
+     */
+    private static void check(MazeModel model, char[] sensorData){
+        int numStates = model.getNumStates();
+        ProbabilisticReasoning reasoning = new ProbabilisticReasoning(model, sensorData, true);
+        CheckpointSmoother smoother = new CheckpointSmoother(model);
+
+        double[] filtered = new double[numStates], smoothed = new double[numStates];
+        smoother.smooth(sensorData, (marginal, t) -> {
+            if(t == 0)
+                return;
+            reasoning.getFiltered().read(t, filtered);
+            reasoning.getSmoothed().read(t, smoothed);
+            checkMarginal("filtered", t, filtered);
+            checkMarginal("smoothed", t, smoothed);
+            checkMarginal("checkpoint smoothed", t, marginal);
+            double maxDifference = 0;
+            for(int i = 0; i < numStates; i++)
+                maxDifference = Math.max(maxDifference, Math.abs(marginal[i] - smoothed[i]));
+            if(maxDifference > TOLERANCE)
+                fail("CheckpointSmoother differs by " + maxDifference + " at t = " + t);
+        });
+
+        double logLikelihood = reasoning.getLogLikelihood();
+        assertFalse(Double.isNaN(logLikelihood) || Double.isInfinite(logLikelihood),
+                "log likelihood is " + logLikelihood);
+        assertEquals(logLikelihood, smoother.getLogLikelihood(), TOLERANCE*Math.max(1, Math.abs(logLikelihood)),
+                "log likelihood of CheckpointSmoother");
+    }
+
+    private static void checkMarginal(String name, int t, double[] marginal){
+        double sum = 0;
+        for(double p: marginal){
+            if(Double.isNaN(p) || Double.isInfinite(p))
+                fail(name + " marginal at t = " + t + " holds " + p);
+            sum += p;
+        }
+        if(Math.abs(sum - 1) > TOLERANCE)
+            fail(name + " marginal at t = " + t + " sums to " + sum);
+    }
+
+    /**
+     * randomReadings
+     * readings that do not follow any walk, with every tenth stretch of 100 steps missing
+     */
+    private static char[] randomReadings(int numSteps, long seed){
+        SplittableRandom random = new SplittableRandom(seed);
+        char[] sensorData = new char[numSteps];
+        for(int t = 0; t < numSteps; t++){
+            sensorData[t] = ((t / 100) % 10 == 9) ? SensorModel.MISSING
+                    : SensorModel.COLORS[random.nextInt(SensorModel.NUM_COLORS)];
+        }
+        return sensorData;
+    }
+}